@@ -2,36 +2,96 @@ package com.iamxgw.mydb.backend.common;
 
 import com.iamxgw.mydb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
- * 使用「引用计数」作为缓存的淘汰策略
+ * 使用「引用计数」判断资源能否被驱逐，使用 ReplacementPolicy 决定驱逐谁
+ * 有容量上限的缓存中，引用计数归零的资源仍然留在缓存里，只有在缓存满时才会被置换出去；
+ * 没有容量上限（maxResource <= 0）的缓存，资源在引用计数归零时直接释放
+ *
+ * 缓存按 key 分成若干段，每段一把锁，不同段的 get/release 互不阻塞。
+ * 资源在加载或驱逐写回期间带有一个 pending future，其他线程访问该 key 时挂起在 future 上，
+ * 完成后立刻被唤醒重试
  * @param <T>
  */
 public abstract class AbstractCache<T> {
-    // 实际缓存的数据
-    private HashMap<Long, T> cache;
-    // 资源的引用个数
-    private HashMap<Long, Integer> references;
-    // 正在被获取的资源
-    // 应多对线程场景，如果当前有其他线程正在获取该缓存，那当前线程就等会（1 million）再过来获取
-    private HashMap<Long, Boolean> getting;
+    // 缓存满且所有资源都被引用时，最长等待时间
+    private static final long EVICT_WAIT_MILLIS = 5000;
+    // 分段个数，必须是 2 的幂
+    private static final int SEGMENTS = 16;
+
+    // 缓存中的一个资源
+    private static class Entry<T> {
+        T obj;
+        // 资源的引用个数
+        int references;
+        // 资源正在被加载或正在被驱逐时不为 null，完成后置 null
+        CompletableFuture<Void> pending;
+        // 置换策略为该资源分配的节点，无容量上限时为 null
+        ReplacementPolicy.Node node;
+    }
+
+    private static class Segment<T> {
+        Lock lock = new ReentrantLock();
+        LongHashMap<Entry<T>> entries = new LongHashMap<>();
+    }
+
+    private Segment<T>[] segments;
 
     // 最大允许缓存资源数
     private int maxResource;
-    // 缓存中元素个数
-    private int count = 0;
-    private Lock lock;
+    // 缓存中元素个数（包括正在加载的）
+    private AtomicInteger count;
+    private ReplacementPolicy policy;
+
+    // 只在缓存满、需要等待其他线程释放资源时使用
+    private Lock evictLock;
+    private Condition evictable;
+    private AtomicInteger evictWaiters;
+
+    // 统计计数，使用 LongAdder 避免多线程更新同一个计数器
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
+    private LongAdder cacheFullErrors;
+    // 引用计数大于 0 的资源个数
+    private LongAdder pinned;
 
     public AbstractCache(int maxResource) {
+        this(maxResource, ReplacementPolicy.clock());
+    }
+
+    @SuppressWarnings("unchecked")
+    public AbstractCache(int maxResource, ReplacementPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        segments = (Segment<T>[]) new Segment<?>[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment<>();
+        }
+        count = new AtomicInteger(0);
+        evictLock = new ReentrantLock();
+        evictable = evictLock.newCondition();
+        evictWaiters = new AtomicInteger(0);
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+        cacheFullErrors = new LongAdder();
+        pinned = new LongAdder();
+    }
+
+    private Segment<T> segmentFor(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 32) & (SEGMENTS - 1)];
     }
 
     /**
@@ -41,76 +101,348 @@ public abstract class AbstractCache<T> {
      * @throws Exception
      */
     protected T get(long key) throws Exception {
+        return get(key, false);
+    }
+
+    /**
+     * 获取 key 中的缓存内容，scan 为 true 表示这是扫描访问，由置换策略决定如何对待
+     * @param key
+     * @param scan
+     * @return
+     * @throws Exception
+     */
+    protected T get(long key, boolean scan) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        Entry<T> entry;
         while (true) {
-            lock.lock();
-            // 该资源是否正在被使用
-            if (getting.containsKey(key)) {
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
+            seg.lock.lock();
+            Entry<T> e = seg.entries.get(key);
+            if (e != null && e.pending != null) {
+                // 其他线程正在加载或驱逐该资源，等待其完成后重试
+                CompletableFuture<Void> pending = e.pending;
+                seg.lock.unlock();
+                pending.join();
                 continue;
             }
-            // 缓存中是否有该资源
-            if (cache.containsKey(key)) {
-                T obj = cache.get(key);
-                references.put(key, references.getOrDefault(key, 0) + 1);
-                lock.unlock();
-                return obj;
+            if (e != null) {
+                if (e.references++ == 0) {
+                    pinned.increment();
+                }
+                ReplacementPolicy.Node node = e.node;
+                seg.lock.unlock();
+                hits.increment();
+                if (node != null) {
+                    policy.access(node, scan);
+                }
+                return e.obj;
             }
 
-            // 尝试获取资源
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
+            // 缓存中没有该资源，先占位，后续访问该 key 的线程会等待本线程加载完成
+            entry = new Entry<>();
+            entry.references = 1;
+            entry.pending = new CompletableFuture<>();
+            seg.entries.put(key, entry);
+            seg.lock.unlock();
+            misses.increment();
+            pinned.increment();
             break;
         }
 
         T obj = null;
+        boolean reserved = false;
         try {
+            reserve();
+            reserved = true;
             obj = getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            seg.entries.remove(key);
+            CompletableFuture<Void> pending = entry.pending;
+            entry.pending = null;
+            seg.lock.unlock();
+            pinned.decrement();
+            if (reserved) {
+                count.decrementAndGet();
+                signalEvictable();
+            }
+            pending.complete(null);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        ReplacementPolicy.Node node = maxResource > 0 ? policy.insert(key, scan) : null;
+        seg.lock.lock();
+        entry.obj = obj;
+        entry.node = node;
+        CompletableFuture<Void> pending = entry.pending;
+        entry.pending = null;
+        seg.lock.unlock();
+        pending.complete(null);
 
         return obj;
     }
 
     /**
-     * 强制释放一个缓存
+     * key 已经在缓存中时获取它，不在缓存中、正在加载或正在驱逐时返回 null，不会等待也不会加载
+     * @param key
+     * @return
+     */
+    protected T getIfPresent(long key) {
+        Segment<T> seg = segmentFor(key);
+        T obj;
+        ReplacementPolicy.Node node;
+        seg.lock.lock();
+        try {
+            Entry<T> e = seg.entries.get(key);
+            if (e == null || e.pending != null) {
+                return null;
+            }
+            if (e.references++ == 0) {
+                pinned.increment();
+            }
+            obj = e.obj;
+            node = e.node;
+        } finally {
+            seg.lock.unlock();
+        }
+        hits.increment();
+        if (node != null) {
+            policy.access(node, false);
+        }
+        return obj;
+    }
+
+    /**
+     * 为即将加载的资源占用一个缓存位置
+     * 缓存已满时，尝试驱逐一个引用计数为 0 的资源，没有的话就等待其他线程释放
+     * @throws Exception
+     */
+    private void reserve() throws Exception {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(EVICT_WAIT_MILLIS);
+        while (!tryReserve()) {
+            evictLock.lock();
+            evictWaiters.incrementAndGet();
+            try {
+                // 登记为等待者之后再检查一次，避免错过释放时发出的信号
+                if (tryReserve()) {
+                    return;
+                }
+                if (waitNanos <= 0) {
+                    cacheFullErrors.increment();
+                    throw Error.CacheFullException;
+                }
+                waitNanos = evictable.awaitNanos(waitNanos);
+            } finally {
+                evictWaiters.decrementAndGet();
+                evictLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 不等待地占用一个缓存位置，缓存已满且没有可驱逐的资源时返回 false
+     * @return
+     */
+    private boolean tryReserve() {
+        while (true) {
+            int c = count.get();
+            if (maxResource <= 0 || c < maxResource) {
+                if (count.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            if (!evict()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 为预读占位：key 不在缓存中，并且不用等待就能腾出位置时，放入一个未被引用的占位资源
+     * 占位后需调用 fill 放入资源或调用 abandon 放弃，期间访问该 key 的线程会等待
+     * @param key
+     * @return 是否占位成功
+     */
+    protected boolean claim(long key) {
+        Segment<T> seg = segmentFor(key);
+        Entry<T> entry = new Entry<>();
+        entry.pending = new CompletableFuture<>();
+        seg.lock.lock();
+        try {
+            if (seg.entries.containsKey(key)) {
+                return false;
+            }
+            seg.entries.put(key, entry);
+        } finally {
+            seg.lock.unlock();
+        }
+        if (tryReserve()) {
+            return true;
+        }
+        seg.lock.lock();
+        seg.entries.remove(key);
+        seg.lock.unlock();
+        entry.pending.complete(null);
+        return false;
+    }
+
+    /**
+     * 放入 claim 占位的资源，资源进入缓存时引用计数为 0
+     * 预读进来的资源还没有被真正访问过，按扫描访问交给置换策略
+     * @param key
+     * @param obj
+     */
+    protected void fill(long key, T obj) {
+        Segment<T> seg = segmentFor(key);
+        ReplacementPolicy.Node node = maxResource > 0 ? policy.insert(key, true) : null;
+        seg.lock.lock();
+        Entry<T> e = seg.entries.get(key);
+        e.obj = obj;
+        e.node = node;
+        CompletableFuture<Void> pending = e.pending;
+        e.pending = null;
+        seg.lock.unlock();
+        pending.complete(null);
+        signalEvictable();
+    }
+
+    /**
+     * 放弃 claim 的占位
+     * @param key
+     */
+    protected void abandon(long key) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        Entry<T> e = seg.entries.remove(key);
+        seg.lock.unlock();
+        count.decrementAndGet();
+        signalEvictable();
+        e.pending.complete(null);
+    }
+
+    /**
+     * 由置换策略选出一个引用计数为 0 的资源，写回并移出缓存
+     * 写回期间该资源处于 pending 状态，访问它的线程会等待写回完成后重新加载
+     * @return 是否驱逐了资源，或者有其他线程释放出了位置
+     */
+    private boolean evict() {
+        // 优先驱逐不需要写回的资源
+        long victim = policy.victim(k -> isEvictable(k, true));
+        if (victim == ReplacementPolicy.NO_VICTIM) {
+            victim = policy.victim(k -> isEvictable(k, false));
+        }
+        if (victim == ReplacementPolicy.NO_VICTIM) {
+            return false;
+        }
+        Segment<T> seg = segmentFor(victim);
+        seg.lock.lock();
+        Entry<T> e = seg.entries.get(victim);
+        if (e == null || e.pending != null || e.references > 0) {
+            // 选中后又被其他线程拿走了，重新选择
+            seg.lock.unlock();
+            return true;
+        }
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        e.pending = pending;
+        seg.lock.unlock();
+
+        policy.remove(e.node);
+        try {
+            releaseForCache(e.obj);
+        } finally {
+            seg.lock.lock();
+            seg.entries.remove(victim);
+            seg.lock.unlock();
+            count.decrementAndGet();
+            evictions.increment();
+            pending.complete(null);
+        }
+        return true;
+    }
+
+    private boolean isEvictable(long key, boolean cleanOnly) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Entry<T> e = seg.entries.get(key);
+            return e != null && e.pending == null && e.references == 0
+                    && (!cleanOnly || isClean(e.obj));
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 如果 key 在缓存中且没有被引用，则独占该资源执行 action
+     * 执行期间访问该 key 的线程会等待，资源也不会被驱逐
+     * @param key
+     * @param action
+     * @return 是否执行了 action
+     */
+    protected boolean applyIfIdle(long key, Consumer<T> action) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        Entry<T> e = seg.entries.get(key);
+        if (e == null || e.pending != null || e.references > 0) {
+            seg.lock.unlock();
+            return false;
+        }
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        e.pending = pending;
+        seg.lock.unlock();
+
+        try {
+            action.accept(e.obj);
+        } finally {
+            seg.lock.lock();
+            e.pending = null;
+            seg.lock.unlock();
+            pending.complete(null);
+        }
+        return true;
+    }
+
+    private void signalEvictable() {
+        if (evictWaiters.get() == 0) {
+            return;
+        }
+        evictLock.lock();
+        try {
+            evictable.signalAll();
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    /**
+     * 释放一个缓存的引用
+     * 引用计数归零后，有容量上限的缓存保留该资源等待置换，否则直接释放
      * @param key
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        T obj = null;
+        seg.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                cache.remove(key);
-                count--;
-            } else {
-                references.put(key, ref);
+            Entry<T> e = seg.entries.get(key);
+            e.references--;
+            if (e.references > 0) {
+                return;
+            }
+            pinned.decrement();
+            if (maxResource <= 0) {
+                seg.entries.remove(key);
+                obj = e.obj;
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+
+        if (obj != null) {
+            count.decrementAndGet();
+            releaseForCache(obj);
+        } else {
+            signalEvictable();
         }
     }
 
@@ -118,18 +450,50 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，并将所有缓存数据写回
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Segment<T> seg : segments) {
+            List<Entry<T>> entries = new ArrayList<>();
+            seg.lock.lock();
+            try {
+                seg.entries.forEach((key, e) -> entries.add(e));
+                seg.entries.clear();
+            } finally {
+                seg.lock.unlock();
+            }
+            for (Entry<T> e : entries) {
+                if (e.pending == null) {
+                    releaseForCache(e.obj);
+                }
+                if (e.node != null) {
+                    policy.remove(e.node);
+                }
             }
-        } finally {
-            lock.unlock();
         }
+        count.set(0);
+    }
+
+    protected long hitCount() {
+        return hits.sum();
+    }
+
+    protected long missCount() {
+        return misses.sum();
+    }
+
+    protected long evictionCount() {
+        return evictions.sum();
+    }
+
+    protected long cacheFullCount() {
+        return cacheFullErrors.sum();
+    }
+
+    // 缓存中的资源个数，包括正在加载的
+    protected int residentCount() {
+        return count.get();
+    }
+
+    protected long pinnedCount() {
+        return pinned.sum();
     }
 
     /**
@@ -145,4 +509,13 @@ public abstract class AbstractCache<T> {
      * @param obj
      */
     protected abstract void releaseForCache(T obj);
+
+    /**
+     * 资源被驱逐时是否不需要写回，缓存满时优先驱逐这样的资源
+     * @param obj
+     * @return
+     */
+    protected boolean isClean(T obj) {
+        return true;
+    }
 }
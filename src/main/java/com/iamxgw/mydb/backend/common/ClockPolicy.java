@@ -0,0 +1,90 @@
+package com.iamxgw.mydb.backend.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK 置换策略
+ * 所有资源排成一个环，每个资源带一个访问位。时钟指针扫过时，
+ * 访问位为 1 的资源将访问位清零并获得第二次机会，访问位为 0 且可驱逐的资源被选中
+ * 命中时只需置访问位，不加锁；环的增删和指针移动在锁内完成
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private static class Slot extends Node {
+        // 在环中的下标，-1 表示已被移除
+        int index;
+        volatile boolean referenced;
+
+        Slot(long key, int index) {
+            super(key);
+            this.index = index;
+            this.referenced = true;
+        }
+    }
+
+    private List<Slot> ring;
+    private int hand;
+
+    public ClockPolicy() {
+        ring = new ArrayList<>();
+        hand = 0;
+    }
+
+    @Override
+    public synchronized Node insert(long key) {
+        Slot slot = new Slot(key, ring.size());
+        ring.add(slot);
+        return slot;
+    }
+
+    @Override
+    public void access(Node node) {
+        ((Slot) node).referenced = true;
+    }
+
+    /**
+     * 将环中最后一个资源挪到被移除资源的位置
+     * @param node
+     */
+    @Override
+    public synchronized void remove(Node node) {
+        Slot slot = (Slot) node;
+        if (slot.index < 0) {
+            return;
+        }
+        int last = ring.size() - 1;
+        if (slot.index != last) {
+            Slot lastSlot = ring.get(last);
+            lastSlot.index = slot.index;
+            ring.set(slot.index, lastSlot);
+        }
+        ring.remove(last);
+        slot.index = -1;
+        if (hand >= ring.size()) {
+            hand = 0;
+        }
+    }
+
+    /**
+     * 指针最多转两圈：第一圈清掉所有访问位，第二圈一定能找到访问位为 0 的可驱逐资源
+     * @param evictable
+     * @return
+     */
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        int size = ring.size();
+        for (int i = 0; i < 2 * size; ++i) {
+            if (hand >= size) {
+                hand = 0;
+            }
+            Slot slot = ring.get(hand++);
+            if (slot.referenced) {
+                slot.referenced = false;
+            } else if (evictable.test(slot.key)) {
+                return slot.key;
+            }
+        }
+        return NO_VICTIM;
+    }
+}
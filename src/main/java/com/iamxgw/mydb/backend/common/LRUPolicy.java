@@ -0,0 +1,82 @@
+package com.iamxgw.mydb.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * LRU 置换策略
+ * 所有资源串成一个双向链表，表头为最近被访问的资源，表尾为最久未被访问的资源
+ */
+public class LRUPolicy implements ReplacementPolicy {
+    private static class LRUNode extends Node {
+        LRUNode prev;
+        LRUNode next;
+
+        LRUNode(long key) {
+            super(key);
+        }
+    }
+
+    // 哨兵节点，head.next 为表头，head.prev 为表尾
+    private LRUNode head;
+
+    public LRUPolicy() {
+        head = new LRUNode(NO_VICTIM);
+        head.prev = head;
+        head.next = head;
+    }
+
+    @Override
+    public synchronized Node insert(long key) {
+        LRUNode node = new LRUNode(key);
+        linkFirst(node);
+        return node;
+    }
+
+    @Override
+    public synchronized void access(Node node) {
+        LRUNode n = (LRUNode) node;
+        if (n.next == null) {
+            // 已被移除
+            return;
+        }
+        unlink(n);
+        linkFirst(n);
+    }
+
+    @Override
+    public synchronized void remove(Node node) {
+        LRUNode n = (LRUNode) node;
+        if (n.next != null) {
+            unlink(n);
+        }
+    }
+
+    /**
+     * 从最久未被访问的资源开始，找到第一个可以被驱逐的资源
+     * @param evictable
+     * @return
+     */
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        for (LRUNode n = head.prev; n != head; n = n.prev) {
+            if (evictable.test(n.key)) {
+                return n.key;
+            }
+        }
+        return NO_VICTIM;
+    }
+
+    private void linkFirst(LRUNode n) {
+        n.prev = head;
+        n.next = head.next;
+        head.next.prev = n;
+        head.next = n;
+    }
+
+    private void unlink(LRUNode n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = null;
+        n.next = null;
+    }
+}
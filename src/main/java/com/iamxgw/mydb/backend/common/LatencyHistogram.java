@@ -0,0 +1,115 @@
+package com.iamxgw.mydb.backend.common;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图，按 2 的幂分桶，第 i 个桶记录 [2^(i-1), 2^i) 纳秒的样本
+ * 每个桶是一个 LongAdder，多个线程同时记录时不会争抢同一个计数器
+ * 分位数只精确到所在桶的上界，误差在 2 倍以内
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private LongAdder[] buckets;
+    private LongAdder totalNanos;
+    private LongAccumulator maxNanos;
+
+    public LatencyHistogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets[i] = new LongAdder();
+        }
+        totalNanos = new LongAdder();
+        maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * 记录一次耗时
+     * @param nanos
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * 记录从 startNanos（System.nanoTime）到现在的耗时
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, totalNanos.sum(), maxNanos.get());
+    }
+
+    /**
+     * 直方图某一时刻的快照，各个计数在记录并发进行时不保证彼此一致
+     */
+    public static class Snapshot {
+        private long[] counts;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        Snapshot(long[] counts, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            for (long c : counts) {
+                this.count += c;
+            }
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getP50Nanos() {
+            return percentile(0.5);
+        }
+
+        public long getP99Nanos() {
+            return percentile(0.99);
+        }
+
+        /**
+         * 返回 p 分位所在桶的上界，不超过记录到的最大值
+         * @param p (0, 1] 之间
+         * @return
+         */
+        public long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long upper = i == 0 ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
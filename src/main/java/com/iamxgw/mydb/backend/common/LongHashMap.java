@@ -0,0 +1,154 @@
+package com.iamxgw.mydb.backend.common;
+
+/**
+ * 以 long 为 key 的开放寻址哈希表，线性探测，删除时回移后续元素，不使用墓碑
+ * 用于缓存热路径，存取时不装箱、不分配
+ * value 不允许为 null，null 表示槽位为空
+ * 非线程安全，由调用者加锁
+ * @param <V>
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private V[] values;
+    private int size;
+    private int mask;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public LongHashMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = (V[]) new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slotOf(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public V get(long key) {
+        int i = slotOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * 放入 key-value，返回旧值
+     * @param key
+     * @param value
+     * @return
+     */
+    public V put(long key, V value) {
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                V old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        // 负载因子不超过 0.5
+        if (++size * 2 > values.length) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * 删除 key，并把探测链上后续的元素回移，保证查找不会因为空槽提前结束
+     * @param key
+     * @return
+     */
+    public V remove(long key) {
+        int i = slotOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = values[i];
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (values[j] != null) {
+            int home = hash(keys[j]) & mask;
+            // home 不在 (hole, j] 之间时，j 处的元素可以挪到 hole
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void clear() {
+        keys = new long[MIN_CAPACITY];
+        values = (V[]) new Object[MIN_CAPACITY];
+        mask = MIN_CAPACITY - 1;
+        size = 0;
+    }
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    public void forEach(Visitor<V> visitor) {
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] != null) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        long[] oldKeys = keys;
+        V[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = (V[]) new Object[oldValues.length << 1];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldValues.length; ++i) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+            int j = hash(oldKeys[i]) & mask;
+            while (values[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
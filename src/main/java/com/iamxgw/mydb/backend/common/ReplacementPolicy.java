@@ -0,0 +1,86 @@
+package com.iamxgw.mydb.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存的置换策略
+ * AbstractCache 在资源进入、命中、离开缓存时通知策略，
+ * 在缓存满时向策略索要一个可以被驱逐的资源
+ * 策略本身不关心引用计数，只通过 evictable 判断某个资源当前能否被驱逐
+ *
+ * 资源进入缓存时策略为其分配一个 Node，由缓存保存在资源的记录里，
+ * 之后的命中和移除直接传入 Node，策略内部不需要再按 key 查找
+ */
+public interface ReplacementPolicy {
+    // 没有可驱逐的资源
+    long NO_VICTIM = -1;
+
+    /**
+     * 策略为每个资源维护的节点，具体策略按需继承
+     */
+    class Node {
+        public final long key;
+
+        public Node(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 资源被加载进缓存
+     * @param key
+     * @return 策略为该资源分配的节点
+     */
+    Node insert(long key);
+
+    /**
+     * 资源被加载进缓存，scan 为 true 表示这是一次扫描访问，
+     * 支持的策略会把资源放入试用区，避免一次扫描把热点资源全部挤出缓存
+     * @param key
+     * @param scan
+     * @return
+     */
+    default Node insert(long key, boolean scan) {
+        return insert(key);
+    }
+
+    /**
+     * 资源在缓存中被命中
+     * @param node
+     */
+    void access(Node node);
+
+    /**
+     * 资源在缓存中被命中，扫描访问不会提升资源的热度
+     * @param node
+     * @param scan
+     */
+    default void access(Node node, boolean scan) {
+        access(node);
+    }
+
+    /**
+     * 资源离开缓存
+     * @param node
+     */
+    void remove(Node node);
+
+    /**
+     * 选出一个可以被驱逐的资源，但不将其移出策略
+     * @param evictable 判断资源当前能否被驱逐（引用计数为 0）
+     * @return 被选中的 key，没有则返回 NO_VICTIM
+     */
+    long victim(LongPredicate evictable);
+
+    public static ReplacementPolicy lru() {
+        return new LRUPolicy();
+    }
+
+    public static ReplacementPolicy clock() {
+        return new ClockPolicy();
+    }
+
+    public static ReplacementPolicy twoQueue() {
+        return new TwoQueuePolicy();
+    }
+}
@@ -0,0 +1,238 @@
+package com.iamxgw.mydb.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 2Q 置换策略，可以抵抗扫描
+ * 资源分在三个队列中：
+ *  1) in：试用区，FIFO。第一次进入缓存的资源放在这里，在这里被命中不会提升热度
+ *  2) main：主区，近似 LRU。只有从 in 被驱逐后又很快被再次访问的资源才会进入
+ *  3) ghost：只记录最近从 in 被驱逐的 key，不占用缓存
+ * in 超过缓存资源数的 1/4 时优先从 in 驱逐，所以一次大范围扫描只会在 in 中轮转，不会挤掉 main 中的热点资源
+ *
+ * 扫描访问进入 in 的资源被驱逐时不进入 ghost，再次扫描也不会把它们提升到 main；
+ * 扫描资源之后被普通访问命中，则按普通资源对待
+ *
+ * 命中时只置节点上的标记，不加锁，与 ClockPolicy 一样不会让所有命中串行在一把锁上；
+ * main 中被命中过的节点在 victim 扫过时清掉标记并移到表头，获得第二次机会，链表的修改都在锁内完成
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private static final int IN = 0;
+    private static final int MAIN = 1;
+    private static final int GHOST = 2;
+    // ghost 至少记录这么多个 key
+    private static final int MIN_GHOSTS = 16;
+
+    private static class QNode extends Node {
+        QNode prev;
+        QNode next;
+        int queue;
+        // 只由扫描访问过，命中时无锁清除
+        volatile boolean scan;
+        // 上次被 victim 扫过之后被命中过，命中时无锁设置
+        volatile boolean referenced;
+
+        QNode(long key) {
+            super(key);
+        }
+    }
+
+    /**
+     * 双向链表，表头为最新加入的节点，表尾为最旧的节点
+     */
+    private static class NodeList {
+        // 哨兵节点，head.next 为表头，head.prev 为表尾
+        QNode head;
+        int size;
+
+        NodeList() {
+            head = new QNode(NO_VICTIM);
+            head.prev = head;
+            head.next = head;
+        }
+
+        void linkFirst(QNode n) {
+            n.prev = head;
+            n.next = head.next;
+            head.next.prev = n;
+            head.next = n;
+            size++;
+        }
+
+        void unlink(QNode n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = null;
+            n.next = null;
+            size--;
+        }
+
+        QNode last() {
+            return head.prev == head ? null : head.prev;
+        }
+
+        /**
+         * 从表尾开始，找到第一个可以被驱逐的资源
+         * @param evictable
+         * @return
+         */
+        long victim(LongPredicate evictable) {
+            for (QNode n = head.prev; n != head; n = n.prev) {
+                if (evictable.test(n.key)) {
+                    return n.key;
+                }
+            }
+            return NO_VICTIM;
+        }
+
+        /**
+         * 从表尾开始找可以被驱逐的资源，被命中过的节点清掉标记后移到表头
+         * 移到表头的节点最多再被扫到一次，所以最多检查 2 * size 个节点
+         * @param evictable
+         * @return
+         */
+        long secondChanceVictim(LongPredicate evictable) {
+            int limit = 2 * size;
+            QNode n = head.prev;
+            for (int i = 0; i < limit && n != head; ++i) {
+                QNode prev = n.prev;
+                if (n.referenced) {
+                    n.referenced = false;
+                    unlink(n);
+                    linkFirst(n);
+                    if (prev == head) {
+                        prev = head.prev;
+                    }
+                } else if (evictable.test(n.key)) {
+                    return n.key;
+                }
+                n = prev;
+            }
+            return NO_VICTIM;
+        }
+    }
+
+    private NodeList in;
+    private NodeList main;
+    private NodeList ghost;
+    private LongHashMap<QNode> ghostIndex;
+
+    public TwoQueuePolicy() {
+        in = new NodeList();
+        main = new NodeList();
+        ghost = new NodeList();
+        ghostIndex = new LongHashMap<>();
+    }
+
+    @Override
+    public Node insert(long key) {
+        return insert(key, false);
+    }
+
+    /**
+     * 最近从 in 被驱逐过的资源直接进入 main，其他资源进入 in
+     * @param key
+     * @param scan
+     * @return
+     */
+    @Override
+    public synchronized Node insert(long key, boolean scan) {
+        QNode n = new QNode(key);
+        QNode g = ghostIndex.remove(key);
+        if (g != null) {
+            ghost.unlink(g);
+        }
+        if (g != null && !scan) {
+            n.queue = MAIN;
+            main.linkFirst(n);
+        } else {
+            n.queue = IN;
+            n.scan = scan;
+            in.linkFirst(n);
+        }
+        return n;
+    }
+
+    @Override
+    public void access(Node node) {
+        access(node, false);
+    }
+
+    /**
+     * 只置标记，不加锁；扫描访问不改变热度
+     * 已经置上的标记不再写，命中热点资源时不会反复写同一个缓存行
+     * @param node
+     * @param scan
+     */
+    @Override
+    public void access(Node node, boolean scan) {
+        if (scan) {
+            return;
+        }
+        QNode n = (QNode) node;
+        if (n.scan) {
+            n.scan = false;
+        }
+        if (!n.referenced) {
+            n.referenced = true;
+        }
+    }
+
+    /**
+     * 非扫描进入 in 的资源离开缓存时，记入 ghost
+     * @param node
+     */
+    @Override
+    public synchronized void remove(Node node) {
+        QNode n = (QNode) node;
+        if (n.next == null) {
+            return;
+        }
+        int resident = in.size + main.size;
+        if (n.queue == IN) {
+            in.unlink(n);
+            if (!n.scan) {
+                remember(n.key, resident);
+            }
+        } else {
+            main.unlink(n);
+        }
+    }
+
+    private void remember(long key, int resident) {
+        QNode g = new QNode(key);
+        g.queue = GHOST;
+        QNode old = ghostIndex.put(key, g);
+        if (old != null) {
+            ghost.unlink(old);
+        }
+        ghost.linkFirst(g);
+        int maxGhosts = Math.max(MIN_GHOSTS, resident / 2);
+        while (ghost.size > maxGhosts) {
+            QNode oldest = ghost.last();
+            ghost.unlink(oldest);
+            ghostIndex.remove(oldest.key);
+        }
+    }
+
+    /**
+     * in 超过缓存资源数的 1/4 时先从 in 中选，否则先从 main 中选，选不到再换另一个队列
+     * @param evictable
+     * @return
+     */
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        int resident = in.size + main.size;
+        long key = NO_VICTIM;
+        if (in.size > resident / 4) {
+            key = in.victim(evictable);
+        }
+        if (key == NO_VICTIM) {
+            key = main.secondChanceVictim(evictable);
+        }
+        if (key == NO_VICTIM) {
+            key = in.victim(evictable);
+        }
+        return key;
+    }
+}
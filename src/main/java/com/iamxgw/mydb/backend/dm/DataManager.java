@@ -4,8 +4,16 @@ import com.iamxgw.mydb.backend.dm.dataItem.DataItem;
 import com.iamxgw.mydb.backend.dm.logger.Logger;
 import com.iamxgw.mydb.backend.dm.page.PageOne;
 import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import com.iamxgw.mydb.backend.tm.TransactionManager;
 
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
 /**
  * DM 直接管理数据库 DB 文件和日志文件
  * DM 的主要职责有：
@@ -14,8 +22,28 @@ import com.iamxgw.mydb.backend.tm.TransactionManager;
  *  3) 抽象 DB 文件为 DataItem 供上层模块使用，并提供缓存
  */
 public interface DataManager {
+    // DataItem 缓存中一项大约占用的内存，用来把内存预算换算成缓存项数
+    public static final int ITEM_ENTRY_SIZE = 256;
+    // 没有指定时，DataItem 缓存的内存预算为页缓存的 1/ITEM_MEM_RATIO
+    public static final int ITEM_MEM_RATIO = 4;
+
     DataItem read(long uid) throws Exception;
+    // 以流的方式读取数据，大数据不会整个读入内存
+    InputStream readStream(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 异步读取，DataItem 和它所在的页都在缓存中时直接完成，否则在 I/O 线程中读取
+    CompletableFuture<DataItem> readAsync(long uid);
+    // 异步插入，插入和写日志都在 I/O 线程中进行
+    CompletableFuture<Long> insertAsync(long xid, byte[] data);
+    // 批量插入，返回每条数据的 uid，同一页中的数据只记一条日志
+    long[] insertBatch(long xid, List<byte[]> data) throws Exception;
+    // 按页号顺序扫描所有有效数据，交给 consumer
+    void scan(ScanConsumer consumer) throws Exception;
+    // 在 pool 中分块并行扫描，每块的结果由 supplier 新建的 collector 收集，再由 reducer 合并
+    <R> R parallelScan(ForkJoinPool pool, Supplier<? extends ScanCollector<R>> supplier,
+                       BinaryOperator<R> reducer) throws Exception;
+    // 获取后台清理进度的快照
+    VacuumStats vacuumStats();
     void close();
 
     /**
@@ -26,24 +54,61 @@ public interface DataManager {
      * @return
      */
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, PageCache.PAGE_SIZE, tm);
+    }
+
+    /**
+     * 在 path 处新建一个页大小为 pageSize 的 DM，页大小记录在 PageOne 中，打开时不需要再指定
+     * @param path
+     * @param mem
+     * @param pageSize
+     * @param tm
+     * @return
+     */
+    public static DataManager create(String path, long mem, int pageSize, TransactionManager tm) {
+        return create(path, mem, pageSize, mem / ITEM_MEM_RATIO, tm);
+    }
+
+    /**
+     * 新建 DM，页缓存使用 mem 的内存，DataItem 缓存使用 itemMem 的内存
+     * @param path
+     * @param mem
+     * @param pageSize
+     * @param itemMem
+     * @param tm
+     * @return
+     */
+    public static DataManager create(String path, long mem, int pageSize, long itemMem, TransactionManager tm) {
+        PageCache pc = PageCache.create(path, mem, pageSize);
         Logger lg = Logger.create(path);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, fsm, tm, (int) (itemMem / ITEM_ENTRY_SIZE));
         dm.initPageOne();
+        dm.vacuum.start();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, mem / ITEM_MEM_RATIO, tm);
+    }
+
+    public static DataManager open(String path, long mem, long itemMem, TransactionManager tm) {
         PageCache pc = PageCache.open(path, mem);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
-        if (!dm.loadCheckPageOne()) {
+        FreeSpaceMap fsm = FreeSpaceMap.open(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, fsm, tm, (int) (itemMem / ITEM_ENTRY_SIZE));
+        boolean clean = dm.loadCheckPageOne();
+        if (!clean) {
             Recover.recover(tm, lg, pc);
         }
-        dm.fillPageIndex();
+        // 上次正常关闭时保存了空闲空间表，就不用扫描所有页
+        if (!clean || !dm.loadFreeSpaceMap()) {
+            dm.fillPageIndex();
+        }
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.vacuum.start();
 
         return dm;
     }
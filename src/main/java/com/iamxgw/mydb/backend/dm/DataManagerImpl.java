@@ -1,12 +1,15 @@
 package com.iamxgw.mydb.backend.dm;
 
 import com.iamxgw.mydb.backend.common.AbstractCache;
+import com.iamxgw.mydb.backend.common.ReplacementPolicy;
 import com.iamxgw.mydb.backend.dm.dataItem.DataItem;
 import com.iamxgw.mydb.backend.dm.dataItem.DataItemImpl;
 import com.iamxgw.mydb.backend.dm.logger.Logger;
+import com.iamxgw.mydb.backend.dm.page.OverflowPage;
 import com.iamxgw.mydb.backend.dm.page.Page;
 import com.iamxgw.mydb.backend.dm.page.PageOne;
 import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import com.iamxgw.mydb.backend.dm.pageIndex.PageIndex;
 import com.iamxgw.mydb.backend.dm.pageIndex.PageInfo;
 import com.iamxgw.mydb.backend.tm.TransactionManager;
@@ -14,26 +17,116 @@ import com.iamxgw.mydb.backend.dm.page.PageX;
 import com.iamxgw.mydb.backend.utils.Panic;
 import com.iamxgw.mydb.backend.utils.Types;
 import com.iamxgw.mydb.common.Error;
+import com.iamxgw.mydb.common.SubArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    // 大数据每批连续写入的溢出页数，一批记一条日志
+    private static final int OVERFLOW_BATCH = 32;
+    // 插入页空闲超过该时间后放回 PageIndex
+    private static final long INSERT_PAGE_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // 异步接口使用的 I/O 线程数
+    private static final int IO_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    // 扫描时每次预读的页数
+    private static final int SCAN_READ_AHEAD = 16;
+    // DataItem 缓存最少的缓存项数
+    private static final int ITEM_MIN_LIM = 10;
+    // insertInto 选中的页放不下数据时返回，合法的 uid 不会是负数
+    private static final long NO_UID = -1;
+
+    /**
+     * 插入分区，独占一个从 PageIndex 中取出的插入页
+     * 线程按 id 固定使用一个分区，连续的插入落在同一页上，不用每次进出 PageIndex
+     * 页放不下新数据，或者空闲超过 INSERT_PAGE_IDLE_NANOS 时才放回 PageIndex
+     */
+    private static class InsertPartition {
+        Lock lock = new ReentrantLock();
+        // 独占的页，null 表示没有
+        PageInfo pi;
+        long lastUsed;
+    }
 
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
     Page pageOne;
+    // 一个空页可以放下的最大数据
+    int maxFreeSpace;
+    Vacuum vacuum;
+    InsertPartition[] insertPartitions;
+    // 执行异步接口中需要等待 I/O 的操作
+    ExecutorService ioExecutor;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+    /**
+     * DataItem 缓存最多缓存 maxItems 个 DataItem，由 2Q 策略置换
+     * 缓存中的 DataItem 只在被使用时引用页，不会占用页缓存的容量
+     * @param pc
+     * @param logger
+     * @param fsm
+     * @param tm
+     * @param maxItems
+     */
+    public DataManagerImpl(PageCache pc, Logger logger, FreeSpaceMap fsm, TransactionManager tm, int maxItems) {
+        super(maxItems, ReplacementPolicy.twoQueue());
+        if (maxItems < ITEM_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
         this.tm = tm;
         this.pc = pc;
         this.logger = logger;
-        this.pIndex = new PageIndex();
+        this.fsm = fsm;
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        this.insertPartitions = new InsertPartition[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < insertPartitions.length; ++i) {
+            insertPartitions[i] = new InsertPartition();
+        }
+        this.vacuum = new Vacuum(this);
+        this.ioExecutor = Executors.newFixedThreadPool(IO_THREADS, r -> {
+            Thread t = new Thread(r, "dm-io");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
+    /**
+     * 读取 uid 对应的 DataItem，数据无效或已被回收时返回 null
+     * @param uid
+     * @return
+     * @throws Exception
+     */
     @Override
     public DataItem read(long uid) throws Exception {
         DataItemImpl di = (DataItemImpl) super.get(uid);
+        boolean pinned = false;
+        try {
+            pinned = di.pin();
+        } finally {
+            if (!pinned) {
+                super.release(uid);
+            }
+        }
+        if (!pinned) {
+            return null;
+        }
         if (!di.isValid()) {
             di.release();
             return null;
@@ -41,87 +134,508 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    /**
+     * 异步读取 uid 对应的 DataItem
+     * DataItem 已在缓存中，并且正在被使用或者所在页已在页缓存中时，在调用线程中直接完成；
+     * 否则交给 I/O 线程执行 read，调用线程不会因为缺页而阻塞
+     * @param uid
+     * @return 数据无效或已被回收时结果为 null
+     */
+    @Override
+    public CompletableFuture<DataItem> readAsync(long uid) {
+        DataItemImpl di = (DataItemImpl) super.getIfPresent(uid);
+        if (di != null) {
+            if (di.tryPin()) {
+                if (di.isValid()) {
+                    return CompletableFuture.completedFuture(di);
+                }
+                di.release();
+                return CompletableFuture.completedFuture(null);
+            }
+            super.release(uid);
+        }
+        return async(() -> read(uid));
+    }
+
+    /**
+     * 异步插入，每次插入都要写日志并 force，所以总是交给 I/O 线程执行
+     * @param xid
+     * @param data
+     * @return
+     */
+    @Override
+    public CompletableFuture<Long> insertAsync(long xid, byte[] data) {
+        return async(() -> insert(xid, data));
+    }
+
+    /**
+     * 在 I/O 线程中执行 task，task 抛出的异常原样交给返回的 future
+     * @param task
+     * @return
+     */
+    private <T> CompletableFuture<T> async(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // DM 已经关闭
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 以流的方式读取 uid 对应的数据，存放在溢出页中的大数据每次只读入一页
+     * @param uid
+     * @return 数据无效或已被回收时返回 null
+     * @throws Exception
+     */
+    @Override
+    public InputStream readStream(long uid) throws Exception {
+        DataItem di = read(uid);
+        if (di == null) {
+            return null;
+        }
+        try {
+            // 先乐观读，不写 DataItem 的锁；期间有写者时加读锁重读
+            long stamp = di.optimisticRead();
+            if (stamp != 0) {
+                InputStream in = openStream(di);
+                if (di.validate(stamp)) {
+                    return in;
+                }
+            }
+            di.rLock();
+            try {
+                return openStream(di);
+            } finally {
+                di.rUnLock();
+            }
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 拷贝 di 的内容，或者读出溢出页的位置，之后的读取不再依赖 di
+     * @param di
+     * @return
+     */
+    private InputStream openStream(DataItem di) {
+        SubArray data = di.data();
+        if (di.isOverflow()) {
+            return new OverflowInputStream(pc, data);
+        }
+        return new ByteArrayInputStream(Arrays.copyOfRange(data.raw, data.start, data.end));
+    }
+
+    /**
+     * 插入数据，一页放不下的数据存入溢出页
+     * 优先插入当前线程所在分区独占的页
+     * 分区正被其他线程使用时，直接从 PageIndex 中选页
+     * 分区的页放不下数据时把它放回 PageIndex，重新选页
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        byte[] raw = DataItem.wrapDataItemRaw(data);
-        if (raw.length > PageX.MAX_FREE_SPACE) {
-            throw Error.DataTooLargeException;
+        byte[] raw = wrapRaw(xid, data);
+        InsertPartition part = insertPartitions[(int) (Thread.currentThread().getId() % insertPartitions.length)];
+        if (!part.lock.tryLock()) {
+            return insertRaw(xid, raw);
+        }
+        try {
+            while (true) {
+                if (part.pi != null && part.pi.freeSpace < raw.length) {
+                    pIndex.add(part.pi.pgno, part.pi.freeSpace);
+                    part.pi = null;
+                }
+                if (part.pi == null) {
+                    part.pi = selectPage(raw.length);
+                }
+                part.lastUsed = System.nanoTime();
+                long uid;
+                try {
+                    uid = insertInto(xid, part.pi, raw);
+                } catch (Exception e) {
+                    pIndex.add(part.pi.pgno, part.pi.freeSpace);
+                    part.pi = null;
+                    throw e;
+                }
+                if (uid != NO_UID) {
+                    return uid;
+                }
+            }
+        } finally {
+            part.lock.unlock();
+        }
+    }
+
+    /**
+     * 把空闲超过 INSERT_PAGE_IDLE_NANOS 的插入页放回 PageIndex，由后台清理线程定期调用
+     */
+    void returnIdleInsertPages() {
+        returnInsertPages(INSERT_PAGE_IDLE_NANOS);
+    }
+
+    /**
+     * 把空闲超过 idleNanos 的插入页放回 PageIndex
+     * @param idleNanos
+     */
+    void returnInsertPages(long idleNanos) {
+        long now = System.nanoTime();
+        for (InsertPartition part : insertPartitions) {
+            part.lock.lock();
+            try {
+                if (part.pi != null && now - part.lastUsed >= idleNanos) {
+                    pIndex.add(part.pi.pgno, part.pi.freeSpace);
+                    part.pi = null;
+                }
+            } finally {
+                part.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 批量插入，返回每条数据的 uid
+     * 选出一页后按顺序尽量多地放入数据，每页只记一条日志、只取一次页锁、只进出一次 PageIndex
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> data) throws Exception {
+        byte[][] raws = new byte[data.size()][];
+        for (int i = 0; i < raws.length; ++i) {
+            raws[i] = wrapRaw(xid, data.get(i));
+        }
+        long[] uids = new long[raws.length];
+        int i = 0;
+        while (i < raws.length) {
+            PageInfo pi = selectPage(raws[i].length);
+            Page pg = null;
+            int freeSpace = 0;
+            try {
+                pg = pc.getPage(pi.pgno);
+                int count = PageX.countFits(pg, raws, i);
+                if (count == 0) {
+                    // 连 raws[i] 都放不下，以页的实际空闲空间放回后重新选页
+                    continue;
+                }
+                byte[] log = Recover.batchInsertLog(xid, pg, raws, i, count);
+                logger.log(log);
+
+                pg.lock();
+                try {
+                    for (int j = i; j < i + count; ++j) {
+                        uids[j] = Types.addressToUid(pi.pgno, PageX.insert(pg, raws[j]));
+                    }
+                } finally {
+                    pg.unlock();
+                }
+                i += count;
+            } finally {
+                if (pg != null) {
+                    freeSpace = PageX.getFreeSpace(pg);
+                    pg.release();
+                }
+                pIndex.add(pi.pgno, freeSpace);
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 将数据包装成 dataitem，一页放不下的数据先写入溢出页
+     * @param xid
+     * @param data
+     * @return
+     * @throws Exception
+     */
+    private byte[] wrapRaw(long xid, byte[] data) throws Exception {
+        if (DataItem.rawSize(data.length) > maxFreeSpace) {
+            return writeOverflow(xid, data);
+        }
+        return DataItem.wrapDataItemRaw(data);
+    }
+
+    /**
+     * 为大数据一次分配连续的溢出页，按批写入，每批先记日志再写页
+     * @param xid
+     * @param data
+     * @return 普通页中指向第一个溢出页的 dataitem
+     * @throws Exception
+     */
+    private byte[] writeOverflow(long xid, byte[] data) throws Exception {
+        int pageSize = pc.getPageSize();
+        int chunk = OverflowPage.maxDataSize(pageSize);
+        int pages = (data.length + chunk - 1) / chunk;
+        int first = pc.allocPages(pages);
+        for (int i = 0; i < pages; i += OVERFLOW_BATCH) {
+            byte[][] batch = new byte[Math.min(OVERFLOW_BATCH, pages - i)][];
+            for (int j = 0; j < batch.length; ++j) {
+                int k = i + j;
+                int next = k == pages - 1 ? OverflowPage.NO_PAGE : first + k + 1;
+                int offset = k * chunk;
+                batch[j] = OverflowPage.initRaw(pageSize, next, data, offset, Math.min(chunk, data.length - offset));
+            }
+            logger.log(Recover.overflowLog(xid, first + i, batch));
+            pc.writeNewPages(first + i, batch);
         }
+        return DataItem.wrapOverflowRaw(data.length, first);
+    }
 
-        PageInfo pi = null;
+    /**
+     * 从 PageIndex 中选出一个至少能放下 size 大小数据的页，没有时新建一页
+     * 选出的页由调用者独占，用完后需要重新放回 PageIndex
+     * @param size
+     * @return
+     * @throws Exception
+     */
+    private PageInfo selectPage(int size) throws Exception {
         for (int i = 0; i < 5; ++i) {
-            pi = pIndex.select(raw.length);
+            PageInfo pi = pIndex.select(size);
             if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                return pi;
             }
+            int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+            pIndex.add(newPgno, maxFreeSpace);
         }
-        if (pi == null) {
-            throw Error.DatabaseBusyException;
+        throw Error.DatabaseBusyException;
+    }
+
+    private long insertRaw(long xid, byte[] raw) throws Exception {
+        while (true) {
+            PageInfo pi = selectPage(raw.length);
+            long uid;
+            try {
+                uid = insertInto(xid, pi, raw);
+            } finally {
+                pIndex.add(pi.pgno, pi.freeSpace);
+            }
+            if (uid != NO_UID) {
+                return uid;
+            }
         }
+    }
 
+    /**
+     * 将 raw 插入到已经从 PageIndex 中取出的页 pi 中，并把插入后的剩余空间记到 pi.freeSpace
+     * 页的实际空闲空间放不下 raw 时不写日志也不修改页，返回 NO_UID，由调用者重新选页
+     * @param xid
+     * @param pi
+     * @param raw
+     * @return
+     * @throws Exception
+     */
+    private long insertInto(long xid, PageInfo pi, byte[] raw) throws Exception {
         Page pg = null;
         int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
+            if (PageX.getFreeSpace(pg) < raw.length) {
+                return NO_UID;
+            }
             byte[] log = Recover.insertLog(xid, pg, raw);
             logger.log(log);
 
-            short offset = PageX.insert(pg, raw);
-
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+            int slot;
+            pg.lock();
+            try {
+                slot = PageX.insert(pg, raw);
+            } finally {
+                pg.unlock();
+            }
+            return Types.addressToUid(pi.pgno, slot);
         } finally {
-            // 将取出的 pg 重新插入 pIndex
+            // 页释放后其页帧可能被复用，所以要在释放前读出剩余空间
             if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                pIndex.add(pi.pgno, freeSpace);
+                freeSpace = PageX.getFreeSpace(pg);
+                pg.release();
             }
+            pi.freeSpace = freeSpace;
         }
     }
 
+    /**
+     * 按页号顺序扫描开始时已写入文件的所有数据页，把有效的数据原地交给 consumer，不经过 DataItem 缓存
+     * @param consumer
+     * @throws Exception
+     */
+    @Override
+    public void scan(ScanConsumer consumer) throws Exception {
+        scanRange(2, pc.getWrittenPageNumber(), consumer);
+    }
+
+    /**
+     * 把页范围切分成块，在 pool 中并行扫描，每块由 supplier 新建的 collector 收集，最后用 reducer 合并
+     * @param pool
+     * @param supplier
+     * @param reducer
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public <R> R parallelScan(ForkJoinPool pool, Supplier<? extends ScanCollector<R>> supplier,
+                              BinaryOperator<R> reducer) throws Exception {
+        try {
+            return pool.invoke(new ParallelScan<>(this, 2, pc.getWrittenPageNumber(), supplier, reducer));
+        } catch (CompletionException e) {
+            // 块中抛出的异常被包装过，可能还被 ForkJoinPool 再包装一层
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 扫描页 [from, to] 中的有效数据
+     * 页以扫描方式读入，每 SCAN_READ_AHEAD 页预读一次，只在 consumer 处理该页的数据期间被引用
+     * 页中已有数据在页被引用期间不会移动，所以只需要槽目录的快照，consumer 执行时不持有页锁
+     * 快照先用乐观读取得，不写页锁；期间有写者时再加读锁重读
+     * 扫描与 DataItem 的修改不互斥，需要一致的数据时由上层保证
+     * @param from
+     * @param to
+     * @param consumer
+     * @return consumer 是否要求继续扫描
+     * @throws Exception
+     */
+    boolean scanRange(int from, int to, ScanConsumer consumer) throws Exception {
+        SubArray view = new SubArray(null, 0, 0);
+        // 当前页的槽目录快照，依次为每个槽的 offset 和 length
+        int[] slots = new int[PageX.maxSlots(pc.getPageSize()) * 2];
+        for (int pgno = from; pgno <= to; ++pgno) {
+            if ((pgno - from) % SCAN_READ_AHEAD == 0) {
+                pc.prefetch(pgno, Math.min(SCAN_READ_AHEAD, to - pgno + 1));
+            }
+            Page pg = pc.getPage(pgno, true);
+            try {
+                int count = -1;
+                long stamp = pg.optimisticRead();
+                if (stamp != 0) {
+                    count = readSlots(pg, slots);
+                    if (!pg.validate(stamp)) {
+                        count = -1;
+                    }
+                }
+                if (count < 0) {
+                    pg.rLock();
+                    try {
+                        count = readSlots(pg, slots);
+                    } finally {
+                        pg.rUnLock();
+                    }
+                }
+                byte[] raw = pg.getData();
+                view.raw = raw;
+                for (int slot = 0; slot < count; ++slot) {
+                    int offset = slots[slot * 2];
+                    if (offset == PageX.NO_ITEM || !DataItem.isValidRaw(raw, offset)) {
+                        continue;
+                    }
+                    view.start = DataItem.dataStart(offset);
+                    view.end = offset + slots[slot * 2 + 1];
+                    if (!consumer.accept(Types.addressToUid(pgno, slot), view, DataItem.isOverflowRaw(raw, offset))) {
+                        return false;
+                    }
+                }
+            } finally {
+                pg.release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把 pg 的槽目录读到 slots 中，溢出页没有槽目录，返回 0
+     * 乐观读时可能读到只写了一半的槽数，超出一页能有的槽数时返回 -1，不越界访问
+     * @param pg
+     * @param slots
+     * @return 槽数
+     */
+    private static int readSlots(Page pg, int[] slots) {
+        if (!PageX.isDataPage(pg)) {
+            return 0;
+        }
+        int count = PageX.getSlotCount(pg);
+        if (count * 2 > slots.length) {
+            return -1;
+        }
+        for (int slot = 0; slot < count; ++slot) {
+            slots[slot * 2] = PageX.getItemOffset(pg, slot);
+            slots[slot * 2 + 1] = PageX.getItemLength(pg, slot);
+        }
+        return count;
+    }
+
+    @Override
+    public VacuumStats vacuumStats() {
+        return vacuum.stats();
+    }
+
     @Override
     public void close() {
+        // 先等已经提交的异步操作完成
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        vacuum.shutdown();
+        returnInsertPages(0);
         super.close();
         logger.close();
 
+        // 空闲空间表先落盘，之后 PageOne 的关闭标记才会写回
+        fsm.save(PageOne.getVc(pageOne), pc.getPageNumber(), pIndex);
+        fsm.close();
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
     }
 
     /**
-     * 在缓存中获取 uid 对应的 DataItem
-     * uid 组成为 [pgno offset]
-     * 其中，pgno 和 offset 各占 4byte
+     * 为 uid 新建一个缓存项
+     * uid 组成为 [pgno slot]
+     * 其中，pgno 和 slot 各占 4byte，slot 为数据在页内的槽号
+     * 这里不读页，数据在第一次被使用时才通过页缓存定位
      * @param uid
      * @return
      * @throws Exception
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int) (uid & ((1L << 32) - 1));
-        Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        return new DataItemImpl(uid, pc, this);
     }
 
     /**
-     * DataItem 缓存释放
+     * DataItem 缓存释放，空闲的 DataItem 不持有页，只有关闭时仍被使用的 DataItem 需要释放页
      * @param di
      */
     @Override
     protected void releaseForCache(DataItem di) {
-        di.page().release();
+        ((DataItemImpl) di).unbind();
     }
 
     // 在创建文件时初始化 PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -132,29 +646,46 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     // 在打开已有文件时，需要读入 PageOne，并验证 PageOne 的正确性
+    // 数据页格式与当前实现不一致时直接退出
     boolean loadCheckPageOne() {
         try {
             pageOne = pc.getPage(1);
         } catch (Exception e) {
             Panic.panic(e);
         }
+        if (!PageOne.checkFormat(pageOne)) {
+            Panic.panic(Error.BadDBFileException);
+        }
         return PageOne.checkVc(pageOne);
     }
 
+    /**
+     * 从上次正常关闭时保存的空闲空间表初始化 PageIndex
+     * @return 是否加载成功，失败时需要 fillPageIndex
+     */
+    boolean loadFreeSpaceMap() {
+        return fsm.load(PageOne.getVc(pageOne), pc.getPageNumber(), pIndex);
+    }
+
     /**
      * 初始化 PageIndex
-     * 打开已有 DM 时，需要将 PageIndex 刷一遍
+     * 打开已有 DM 并且没有可用的空闲空间表时，需要将 PageIndex 刷一遍
      */
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        // 顺序扫描所有页，先提示页缓存批量读入，后续的页由顺序预读接上
+        pc.prefetch(2, pageNumber - 1);
         for (int i = 2; i <= pageNumber; ++i) {
             Page pg = null;
             try {
-                pg = pc.getPage(i);
+                pg = pc.getPage(i, true);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            // 溢出页不参与插入
+            if (PageX.isDataPage(pg)) {
+                pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            }
             pg.release();
         }
     }
@@ -0,0 +1,78 @@
+package com.iamxgw.mydb.backend.dm;
+
+import com.iamxgw.mydb.backend.dm.page.OverflowPage;
+import com.iamxgw.mydb.backend.dm.page.Page;
+import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.utils.Panic;
+import com.iamxgw.mydb.backend.utils.Parser;
+import com.iamxgw.mydb.common.Error;
+import com.iamxgw.mydb.common.SubArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 顺序读取存放在溢出页链中的大数据
+ * 每次 read 最多读到当前页的末尾，读完即释放该页，不会把整个数据读入内存，也不会一直占着缓存中的页
+ * 溢出页以扫描方式读入，不会挤掉缓存中的热点页
+ */
+class OverflowInputStream extends InputStream {
+    private PageCache pc;
+    // 当前页的页号，以及当前页中已读的字节数
+    private int pgno;
+    private int pos;
+    // 剩余未读的字节数
+    private int remaining;
+    private byte[] single;
+
+    /**
+     * @param pc
+     * @param desc 大数据的 dataitem 中的 [TotalLength 4] [FirstPgno 4]
+     */
+    OverflowInputStream(PageCache pc, SubArray desc) {
+        this.pc = pc;
+        this.remaining = Parser.parseInt(desc.raw, desc.start);
+        this.pgno = Parser.parseInt(desc.raw, desc.start + 4);
+        this.pos = 0;
+        this.single = new byte[1];
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining == 0) {
+            return -1;
+        }
+        Page pg;
+        try {
+            pg = pc.getPage(pgno, true);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        int n;
+        try {
+            int length = OverflowPage.getLength(pg);
+            n = Math.min(Math.min(len, length - pos), remaining);
+            if (n <= 0) {
+                Panic.panic(Error.BadDBFileException);
+            }
+            System.arraycopy(pg.getData(), OverflowPage.OF_DATA + pos, b, off, n);
+            pos += n;
+            if (pos == length) {
+                pgno = OverflowPage.getNext(pg);
+                pos = 0;
+            }
+        } finally {
+            pg.release();
+        }
+        remaining -= n;
+        return n;
+    }
+}
@@ -0,0 +1,52 @@
+package com.iamxgw.mydb.backend.dm;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * 并行扫描页 [from, to]
+ * 范围大于 CHUNK_PAGES 页时对半切分，两半分别扫描后用 reducer 按页号顺序合并（左半在前）；
+ * 否则新建一个 collector 顺序扫描这一块，每块各自预读
+ * @param <R>
+ */
+class ParallelScan<R> extends RecursiveTask<R> {
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK_PAGES = 128;
+
+    private DataManagerImpl dm;
+    private int from;
+    private int to;
+    private Supplier<? extends ScanCollector<R>> supplier;
+    private BinaryOperator<R> reducer;
+
+    ParallelScan(DataManagerImpl dm, int from, int to, Supplier<? extends ScanCollector<R>> supplier,
+                 BinaryOperator<R> reducer) {
+        this.dm = dm;
+        this.from = from;
+        this.to = to;
+        this.supplier = supplier;
+        this.reducer = reducer;
+    }
+
+    @Override
+    protected R compute() {
+        if (to - from + 1 > CHUNK_PAGES) {
+            int mid = from + (to - from) / 2;
+            ParallelScan<R> left = new ParallelScan<>(dm, from, mid, supplier, reducer);
+            ParallelScan<R> right = new ParallelScan<>(dm, mid + 1, to, supplier, reducer);
+            left.fork();
+            R r = right.compute();
+            return reducer.apply(left.join(), r);
+        }
+        ScanCollector<R> collector = supplier.get();
+        try {
+            dm.scanRange(from, to, collector);
+        } catch (Exception e) {
+            // 包装后由 parallelScan 取出原来的异常
+            throw new CompletionException(e);
+        }
+        return collector.result();
+    }
+}
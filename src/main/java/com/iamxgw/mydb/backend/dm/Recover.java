@@ -9,6 +9,7 @@ import com.iamxgw.mydb.backend.tm.TransactionManager;
 import com.iamxgw.mydb.backend.dm.page.PageX;
 import com.iamxgw.mydb.backend.utils.Panic;
 import com.iamxgw.mydb.backend.utils.Parser;
+import com.iamxgw.mydb.common.Error;
 import com.iamxgw.mydb.common.SubArray;
 
 import java.util.*;
@@ -17,6 +18,8 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_OVERFLOW = 2;
+    private static final byte LOG_TYPE_BATCH_INSERT = 3;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -25,19 +28,34 @@ public class Recover {
     static class InsertLogInfo{
         long xid;
         int pgno;
-        short offset;
+        int slot;
         byte[] raw;
     }
 
+    // 批量插入日志，一条日志记录插入同一页的多个数据，槽号从 slot 开始连续
+    static class BatchInsertLogInfo{
+        long xid;
+        int pgno;
+        int slot;
+        byte[][] raws;
+    }
+
     // 更新型日志
     static class UpdateLogInfo{
         long xid;
         int pgno;
-        short offset;
+        int slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
+    // 溢出页日志，一条日志记录一批连续的溢出页
+    static class OverflowLogInfo{
+        long xid;
+        int pgno;
+        int count;
+    }
+
     // 没有删除型日志
 
     /**
@@ -51,6 +69,8 @@ public class Recover {
 
         lg.rewind();
         int maxPgno = 0;
+        // 日志涉及到的页，redo 之前先批量读入
+        BitSet touched = new BitSet();
         while (true) {
             byte[] log = lg.next();
             if (log == null) break;
@@ -58,6 +78,17 @@ public class Recover {
             if (isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 pgno = li.pgno;
+            } else if (isBatchInsertLog(log)) {
+                BatchInsertLogInfo li = parseBatchInsertLog(log);
+                pgno = li.pgno;
+            } else if (isOverflowLog(log)) {
+                // 溢出页会被整页覆盖，不需要预读
+                OverflowLogInfo li = parseOverflowLog(log, pc.getPageSize());
+                pgno = li.pgno + li.count - 1;
+                if (pgno > maxPgno) {
+                    maxPgno = pgno;
+                }
+                continue;
             } else {
                 UpdateLogInfo li = parseUpdateLog(log);
                 pgno = li.pgno;
@@ -65,6 +96,7 @@ public class Recover {
             if (pgno > maxPgno) {
                 maxPgno = pgno;
             }
+            touched.set(pgno);
         }
         if (maxPgno == 0) {
             maxPgno = 1;
@@ -72,6 +104,8 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
+        prefetchPages(pc, touched);
+
         redoTransactions(tm, lg, pc);
         System.out.println("Redo Transactions Over.");
 
@@ -81,10 +115,32 @@ public class Recover {
         System.out.println("Recover Over.");
     }
 
+    /**
+     * 将 pages 中相邻的页合并成区间，逐个区间预读
+     * @param pc
+     * @param pages
+     */
+    private static void prefetchPages(PageCache pc, BitSet pages) {
+        int start = pages.nextSetBit(0);
+        while (start >= 0) {
+            int end = pages.nextClearBit(start);
+            pc.prefetch(start, end - start);
+            start = pages.nextSetBit(end);
+        }
+    }
+
     private static boolean isInsertLog(byte[] log) {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isBatchInsertLog(byte[] log) {
+        return log[0] == LOG_TYPE_BATCH_INSERT;
+    }
+
+    private static boolean isOverflowLog(byte[] log) {
+        return log[0] == LOG_TYPE_OVERFLOW;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
@@ -105,7 +161,7 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.slot = (int)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -122,58 +178,167 @@ public class Recover {
      */
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
         int pgno;
-        short offset;
+        int slot;
         byte[] raw;
         // REDO 还原成新值
         if (flag == REDO) {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.newRaw;
         } else {
             // UNDO 还原成旧值
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.oldRaw;
         }
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(pgno, true);
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            PageX.recoverUpdate(pg, raw, slot);
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID + 8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;
 
+    /**
+     * 插入日志，记录数据将要占用的槽号，需要在 PageX.insert 之前生成
+     * @param xid
+     * @param pg
+     * @param raw
+     * @return
+     */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte((short) PageX.getSlotCount(pg));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW)) & 0xFFFF;
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
+    // [LogType] [XID] [Pgno] [PageRaw] ... [PageRaw]
+    private static final int OF_OVERFLOW_PGNO = OF_XID + 8;
+    private static final int OF_OVERFLOW_RAW = OF_OVERFLOW_PGNO + 4;
+
     /**
-     * redo log
+     * 溢出页日志，记录从 pgno 开始的一批连续溢出页的完整内容
+     * @param xid
+     * @param pgno
+     * @param pages
+     * @return
+     */
+    public static byte[] overflowLog(long xid, int pgno, byte[][] pages) {
+        byte[][] parts = new byte[pages.length + 3][];
+        parts[0] = new byte[]{LOG_TYPE_OVERFLOW};
+        parts[1] = Parser.long2Byte(xid);
+        parts[2] = Parser.int2Byte(pgno);
+        System.arraycopy(pages, 0, parts, 3, pages.length);
+        return Bytes.concat(parts);
+    }
+
+    private static OverflowLogInfo parseOverflowLog(byte[] log, int pageSize) {
+        OverflowLogInfo li = new OverflowLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_OVERFLOW_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_OVERFLOW_PGNO, OF_OVERFLOW_RAW));
+        li.count = (log.length - OF_OVERFLOW_RAW) / pageSize;
+        return li;
+    }
+
+    /**
+     * 把日志中的溢出页整页写回
+     * 溢出页只写入一次，重做与事务的状态无关，事务没有提交时这些页不会被引用
+     * @param pc
+     * @param log
+     */
+    private static void doOverflowLog(PageCache pc, byte[] log) {
+        int pageSize = pc.getPageSize();
+        OverflowLogInfo li = parseOverflowLog(log, pageSize);
+        for (int i = 0; i < li.count; ++i) {
+            Page pg = null;
+            try {
+                pg = pc.getPage(li.pgno + i, true);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            try {
+                pg.setDirty(true);
+                System.arraycopy(log, OF_OVERFLOW_RAW + i * pageSize, pg.getData(), 0, pageSize);
+            } finally {
+                pg.release();
+            }
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Slot] [Count] [Length] [Raw] ... [Length] [Raw]
+    private static final int OF_BATCH_COUNT = OF_INSERT_RAW;
+    private static final int OF_BATCH_RAW = OF_BATCH_COUNT + 2;
+
+    /**
+     * 批量插入日志，记录 raws[from, from + count) 将要依次占用的槽号，需要在 PageX.insert 之前生成
+     * @param xid
+     * @param pg
+     * @param raws
+     * @param from
+     * @param count
+     * @return
+     */
+    public static byte[] batchInsertLog(long xid, Page pg, byte[][] raws, int from, int count) {
+        int size = OF_BATCH_RAW;
+        for (int i = from; i < from + count; ++i) {
+            size += 2 + raws[i].length;
+        }
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_BATCH_INSERT;
+        System.arraycopy(Parser.long2Byte(xid), 0, log, OF_XID, 8);
+        System.arraycopy(Parser.int2Byte(pg.getPageNumber()), 0, log, OF_INSERT_PGNO, 4);
+        System.arraycopy(Parser.short2Byte((short) PageX.getSlotCount(pg)), 0, log, OF_INSERT_SLOT, 2);
+        System.arraycopy(Parser.short2Byte((short) count), 0, log, OF_BATCH_COUNT, 2);
+        int pos = OF_BATCH_RAW;
+        for (int i = from; i < from + count; ++i) {
+            System.arraycopy(Parser.short2Byte((short) raws[i].length), 0, log, pos, 2);
+            System.arraycopy(raws[i], 0, log, pos + 2, raws[i].length);
+            pos += 2 + raws[i].length;
+        }
+        return log;
+    }
+
+    private static BatchInsertLogInfo parseBatchInsertLog(byte[] log) {
+        BatchInsertLogInfo li = new BatchInsertLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_BATCH_COUNT)) & 0xFFFF;
+        int count = Parser.parseShort(Arrays.copyOfRange(log, OF_BATCH_COUNT, OF_BATCH_RAW)) & 0xFFFF;
+        li.raws = new byte[count][];
+        int pos = OF_BATCH_RAW;
+        for (int i = 0; i < count; ++i) {
+            int length = Parser.parseShort(Arrays.copyOfRange(log, pos, pos + 2)) & 0xFFFF;
+            li.raws[i] = Arrays.copyOfRange(log, pos + 2, pos + 2 + length);
+            pos += 2 + length;
+        }
+        return li;
+    }
+
+    /**
+     * 恢复一条插入型日志，UNDO 时恢复成无效的数据
      * @param pc
      * @param log
      * @param flag
@@ -182,20 +347,60 @@ public class Recover {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
-            pg = pc.getPage(li.pgno);
+            pg = pc.getPage(li.pgno, true);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            recoverItem(pg, li.raw, li.slot, flag);
+        } finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * 恢复一条批量插入日志中的所有数据
+     * @param pc
+     * @param log
+     * @param flag
+     */
+    private static void doBatchInsertLog(PageCache pc, byte[] log, int flag) {
+        BatchInsertLogInfo li = parseBatchInsertLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno, true);
         } catch(Exception e) {
             Panic.panic(e);
         }
         try {
-            if (flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
+            for (int i = 0; i < li.raws.length; ++i) {
+                recoverItem(pg, li.raws[i], li.slot + i, flag);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
             pg.release();
         }
     }
 
+    /**
+     * 将一个插入的数据恢复到 pg 的第 slot 个槽，UNDO 时恢复成无效的数据
+     * 页内空间不够时（被回收的空间在恢复过程中又被占用），先回收页内无效的数据再重试
+     * @param pg
+     * @param raw
+     * @param slot
+     * @param flag
+     */
+    private static void recoverItem(Page pg, byte[] raw, int slot, int flag) {
+        if (flag == UNDO) {
+            DataItem.setDataItemRawInvalid(raw);
+        }
+        if (!PageX.recoverInsert(pg, raw, slot)) {
+            DataItem.reclaimInvalid(pg);
+            if (!PageX.recoverInsert(pg, raw, slot)) {
+                Panic.panic(Error.BadDBFileException);
+            }
+        }
+    }
+
     /**
      * 重做（redo）
      * @param tm
@@ -210,9 +415,21 @@ public class Recover {
             if (isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 long xid = li.xid;
-                if (!tm.isActivate(xid)) {
+                if (tm.isAborted(xid)) {
+                    // 已回滚的事务插入的数据恢复成无效的，使其空间可以被回收
+                    doInsertLog(pc, log, UNDO);
+                } else if (!tm.isActivate(xid)) {
                     doInsertLog(pc, log, REDO);
                 }
+            } else if (isBatchInsertLog(log)) {
+                long xid = parseBatchInsertLog(log).xid;
+                if (tm.isAborted(xid)) {
+                    doBatchInsertLog(pc, log, UNDO);
+                } else if (!tm.isActivate(xid)) {
+                    doBatchInsertLog(pc, log, REDO);
+                }
+            } else if (isOverflowLog(log)) {
+                doOverflowLog(pc, log);
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
@@ -246,6 +463,17 @@ public class Recover {
                     }
                     logCache.get(xid).add(log);
                 }
+            } else if (isBatchInsertLog(log)) {
+                long xid = parseBatchInsertLog(log).xid;
+                if (tm.isActivate(xid)) {
+                    if (!logCache.containsKey(xid)) {
+                        logCache.put(xid, new ArrayList<>());
+                    }
+                    logCache.get(xid).add(log);
+                }
+            } else if (isOverflowLog(log)) {
+                // 溢出页不需要撤销，撤销插入时其 dataitem 会被置为无效
+                continue;
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
@@ -265,6 +493,8 @@ public class Recover {
                 byte[] log = logs.get(i);
                 if (isInsertLog(log)) {
                     doInsertLog(pc, log, UNDO);
+                } else if (isBatchInsertLog(log)) {
+                    doBatchInsertLog(pc, log, UNDO);
                 } else {
                     doUpdateLog(pc, log, UNDO);
                 }
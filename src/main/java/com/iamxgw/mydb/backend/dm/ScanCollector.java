@@ -0,0 +1,11 @@
+package com.iamxgw.mydb.backend.dm;
+
+/**
+ * DataManager.parallelScan 中收集一块页范围的结果
+ * 每个 collector 只被一个线程使用，不需要同步；返回 false 只会停止它所在的那一块
+ * @param <R>
+ */
+public interface ScanCollector<R> extends ScanConsumer {
+    // 本块扫描结束后的结果
+    R result();
+}
@@ -0,0 +1,20 @@
+package com.iamxgw.mydb.backend.dm;
+
+import com.iamxgw.mydb.common.SubArray;
+
+/**
+ * 接收 DataManager.scan 扫描到的每条有效数据
+ */
+@FunctionalInterface
+public interface ScanConsumer {
+    /**
+     * data 直接指向页中的数据，只在本次调用期间有效，需要保留时自行拷贝
+     * overflow 为 true 时数据存放在溢出页中，data 只是描述，内容需要通过 readStream(uid) 读取
+     * @param uid
+     * @param data
+     * @param overflow
+     * @return 返回 false 时停止扫描
+     * @throws Exception
+     */
+    boolean accept(long uid, SubArray data, boolean overflow) throws Exception;
+}
@@ -0,0 +1,220 @@
+package com.iamxgw.mydb.backend.dm;
+
+import com.iamxgw.mydb.backend.dm.dataItem.DataItem;
+import com.iamxgw.mydb.backend.dm.page.Page;
+import com.iamxgw.mydb.backend.dm.page.PageX;
+import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.dm.pageIndex.PageIndex;
+import com.iamxgw.mydb.backend.dm.pageIndex.PageInfo;
+import com.iamxgw.mydb.backend.utils.Panic;
+import com.iamxgw.mydb.common.Error;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台清理线程，回收无效 DataItem 占用的页内空间，并把页重新登记到 PageIndex
+ * 无效的 DataItem 来自恢复时撤销的插入（包括已回滚事务的插入），以及上层写入的无效数据。
+ * 上层只有在没有事务还需要某个数据时，才能把它标记为无效，被回收的数据不能再被撤销
+ *
+ * 线程以最低优先级按页号顺序巡检，每批检查 BATCH_PAGES 页后休眠 INTERVAL_MILLIS，
+ * 巡检以扫描方式读页，不会挤掉缓存中的热点页。清理一页的步骤：
+ *  1) 页不在 PageIndex 中说明正在被插入，跳过
+ *  2) 读锁下统计无效数据的大小，没有可回收的空间就结束，不改动 PageIndex
+ *  3) 从 PageIndex 中取走该页，取不到同样跳过
+ *  4) 页没有被引用时独占该页，回收无效数据并整理页内空间；页上还有正在使用的 DataItem 时跳过，
+ *     缓存中空闲的 DataItem 不引用页，下次使用时会按槽号重新定位
+ *  5) 以整理后的空闲空间把页放回 PageIndex
+ * 每批之前还会把插入分区中空闲的插入页放回 PageIndex，之后这些页才能被清理
+ */
+class Vacuum implements Runnable {
+    private static final long INTERVAL_MILLIS = 100;
+    private static final int BATCH_PAGES = 64;
+    // 第一页为 PageOne
+    private static final int FIRST_PGNO = 2;
+
+    private DataManagerImpl dm;
+    private PageCache pc;
+    private PageIndex pIndex;
+    private Thread thread;
+    private Lock lock;
+    private Condition wakeup;
+    private volatile boolean closed;
+
+    private volatile int position;
+    private LongAdder passes;
+    private LongAdder pagesScanned;
+    private LongAdder pagesVacuumed;
+    private LongAdder pagesBusy;
+    private LongAdder bytesReclaimed;
+
+    Vacuum(DataManagerImpl dm) {
+        this.dm = dm;
+        this.pc = dm.pc;
+        this.pIndex = dm.pIndex;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+        this.position = FIRST_PGNO;
+        this.passes = new LongAdder();
+        this.pagesScanned = new LongAdder();
+        this.pagesVacuumed = new LongAdder();
+        this.pagesBusy = new LongAdder();
+        this.bytesReclaimed = new LongAdder();
+    }
+
+    void start() {
+        thread = new Thread(this, "vacuum");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 停止清理线程，并等待正在清理的一批页结束
+     */
+    void shutdown() {
+        closed = true;
+        if (thread == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            dm.returnIdleInsertPages();
+            vacuumBatch();
+            lock.lock();
+            try {
+                if (!closed) {
+                    wakeup.await(INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 从 position 开始检查一批页，检查完最后一页后回到第一页，开始新的一轮
+     */
+    private void vacuumBatch() {
+        int pageNumber = pc.getPageNumber();
+        for (int i = 0; i < BATCH_PAGES && !closed; ++i) {
+            if (position > pageNumber) {
+                position = FIRST_PGNO;
+                passes.increment();
+                return;
+            }
+            vacuumPage(position++);
+        }
+    }
+
+    /**
+     * 同步检查所有页一遍
+     */
+    void runPass() {
+        for (int pgno = FIRST_PGNO; pgno <= pc.getPageNumber(); ++pgno) {
+            vacuumPage(pgno);
+        }
+        passes.increment();
+    }
+
+    /**
+     * 清理页 pgno
+     * @param pgno
+     * @return 回收的空间大小
+     */
+    int vacuumPage(int pgno) {
+        if (!pIndex.contains(pgno)) {
+            pagesBusy.increment();
+            return 0;
+        }
+        int invalid;
+        try {
+            Page pg = pc.getPage(pgno, true);
+            pg.rLock();
+            try {
+                invalid = DataItem.getInvalidSpace(pg);
+            } finally {
+                pg.rUnLock();
+                pg.release();
+            }
+        } catch (Exception e) {
+            return skipOnCacheFull(e);
+        }
+        pagesScanned.increment();
+        if (invalid == 0) {
+            return 0;
+        }
+
+        PageInfo pi = pIndex.remove(pgno);
+        if (pi == null) {
+            pagesBusy.increment();
+            return 0;
+        }
+        int[] freeSpace = {pi.freeSpace};
+        int[] reclaimed = {0};
+        try {
+            boolean idle = pc.applyIfIdle(pgno, p -> {
+                p.lock();
+                try {
+                    reclaimed[0] = DataItem.reclaimInvalid(p);
+                    freeSpace[0] = PageX.getFreeSpace(p);
+                } finally {
+                    p.unlock();
+                }
+            });
+            if (!idle) {
+                pagesBusy.increment();
+                return 0;
+            }
+            pagesVacuumed.increment();
+            bytesReclaimed.add(reclaimed[0]);
+            return reclaimed[0];
+        } finally {
+            pIndex.add(pgno, freeSpace[0]);
+        }
+    }
+
+    /**
+     * 缓存已满时本轮跳过该页
+     * @param e
+     * @return
+     */
+    private int skipOnCacheFull(Exception e) {
+        if (e != Error.CacheFullException) {
+            Panic.panic(e);
+        }
+        pagesBusy.increment();
+        return 0;
+    }
+
+    VacuumStats stats() {
+        VacuumStats st = new VacuumStats();
+        st.passes = passes.sum();
+        st.position = position;
+        st.pageNumber = pc.getPageNumber();
+        st.pagesScanned = pagesScanned.sum();
+        st.pagesVacuumed = pagesVacuumed.sum();
+        st.pagesBusy = pagesBusy.sum();
+        st.bytesReclaimed = bytesReclaimed.sum();
+        return st;
+    }
+}
@@ -0,0 +1,51 @@
+package com.iamxgw.mydb.backend.dm;
+
+/**
+ * 后台清理进度的快照，由 DataManager.vacuumStats() 生成
+ * 计数从 DM 创建或打开时开始累计
+ */
+public class VacuumStats {
+    long passes;
+    int position;
+    int pageNumber;
+    long pagesScanned;
+    long pagesVacuumed;
+    long pagesBusy;
+    long bytesReclaimed;
+
+    VacuumStats() {
+    }
+
+    // 已完成的完整巡检轮数
+    public long getPasses() {
+        return passes;
+    }
+
+    // 本轮下一个要检查的页号
+    public int getPosition() {
+        return position;
+    }
+
+    // 本轮的完成比例
+    public double getProgress() {
+        return pageNumber < 2 ? 1 : Math.min(1, (double) (position - 2) / (pageNumber - 1));
+    }
+
+    public long getPagesScanned() {
+        return pagesScanned;
+    }
+
+    // 回收了空间的页数
+    public long getPagesVacuumed() {
+        return pagesVacuumed;
+    }
+
+    // 正在被插入或被引用，本轮跳过的页数
+    public long getPagesBusy() {
+        return pagesBusy;
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+}
@@ -1,23 +1,23 @@
 package com.iamxgw.mydb.backend.dm.dataItem;
 
 import com.google.common.primitives.Bytes;
-import com.iamxgw.mydb.backend.dm.DataManagerImpl;
 import com.iamxgw.mydb.backend.dm.page.Page;
+import com.iamxgw.mydb.backend.dm.page.PageX;
 import com.iamxgw.mydb.backend.utils.Parser;
-import com.iamxgw.mydb.backend.utils.Types;
 import com.iamxgw.mydb.common.SubArray;
 
-import java.util.Arrays;
-
 /**
  * dataItem 结构：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlat 1 字节，0 表示合法，1 表示非法。删除一个 DataItem，只需要简单地将其有效位设置为 0
- * DataSize 2 字节，标识 Data 长度
+ * ValidFlat 1 字节，最低位为 0 表示合法，为 1 表示非法。删除一个 DataItem，只需要简单地将其最低位设置为 1
+ * 次低位为 1 表示数据存放在溢出页中，此时 Data 为 [TotalLength 4] [FirstPgno 4]，内容需要通过 DataManager.readStream 读取
+ * DataSize 2 字节，标识 Data 长度，按无符号数解析
  */
 public interface DataItem {
-    // 共享数组 SubArray
+    // 共享数组 SubArray，每次返回同一个视图，只在 release 之前有效，调用者不能修改它的 start 和 end
     SubArray data();
+    // 数据是否存放在溢出页中
+    boolean isOverflow();
 
     void before();
     void unBefore();
@@ -28,28 +28,92 @@ public interface DataItem {
     void unlock();
     void rLock();
     void rUnLock();
+    // 乐观读，用法同 Page：读 data() 之前取版本戳，读完后 validate，失败则加读锁重读
+    long optimisticRead();
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
+    // 最近一次 before 时保存的修改前内容
     byte[] getOldRaw();
     SubArray getRaw();
 
+    // 长度为 length 的数据包装成 dataitem 后的大小
+    public static int rawSize(int length) {
+        return DataItemImpl.OF_DATA + length;
+    }
+
     public static byte[] wrapDataItemRaw(byte[] raw) {
         byte[] valid = new byte[1];
         byte[] size = Parser.short2Byte((short)raw.length);
         return Bytes.concat(valid, size, raw);
     }
 
-    // 从页面的 offset 处解析此处的 dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
-        byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+    /**
+     * 存放在溢出页中的大数据在普通页中的 dataitem，记录数据总长度和第一个溢出页的页号
+     * @param length
+     * @param firstPgno
+     * @return
+     */
+    public static byte[] wrapOverflowRaw(int length, int firstPgno) {
+        byte[] flag = {DataItemImpl.FLAG_OVERFLOW};
+        byte[] size = Parser.short2Byte((short) 8);
+        return Bytes.concat(flag, size, Parser.int2Byte(length), Parser.int2Byte(firstPgno));
+    }
+
+    // 页数据 raw 中位于 offset 的 dataitem 是否有效
+    public static boolean isValidRaw(byte[] raw, int offset) {
+        return (raw[offset + DataItemImpl.OF_VALID] & DataItemImpl.FLAG_INVALID) == 0;
+    }
+
+    // 页数据 raw 中位于 offset 的 dataitem 是否存放在溢出页中
+    public static boolean isOverflowRaw(byte[] raw, int offset) {
+        return (raw[offset + DataItemImpl.OF_VALID] & DataItemImpl.FLAG_OVERFLOW) != 0;
+    }
+
+    // 位于 offset 的 dataitem 中 Data 的起始位置
+    public static int dataStart(int offset) {
+        return offset + DataItemImpl.OF_DATA;
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte) 1;
+        raw[DataItemImpl.OF_VALID] |= DataItemImpl.FLAG_INVALID;
+    }
+
+    /**
+     * 统计 pg 中无效的 dataitem 占用的空间，调用者需要持有页的读锁
+     * @param pg
+     * @return
+     */
+    public static int getInvalidSpace(Page pg) {
+        byte[] raw = pg.getData();
+        int count = PageX.getSlotCount(pg);
+        int size = 0;
+        for (int slot = 0; slot < count; ++slot) {
+            int offset = PageX.getItemOffset(pg, slot);
+            if (offset != PageX.NO_ITEM && (raw[offset + DataItemImpl.OF_VALID] & DataItemImpl.FLAG_INVALID) != 0) {
+                size += PageX.getItemLength(pg, slot);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 回收 pg 中所有无效的 dataitem 并整理页内空间
+     * 调用者需要保证没有其他线程持有该页上的 dataitem，
+     * 并且这些 dataitem 的无效标记不会再被撤销
+     * @param pg
+     * @return 整理出的空间大小
+     */
+    public static int reclaimInvalid(Page pg) {
+        byte[] raw = pg.getData();
+        int count = PageX.getSlotCount(pg);
+        for (int slot = 0; slot < count; ++slot) {
+            int offset = PageX.getItemOffset(pg, slot);
+            if (offset != PageX.NO_ITEM && (raw[offset + DataItemImpl.OF_VALID] & DataItemImpl.FLAG_INVALID) != 0) {
+                PageX.free(pg, slot);
+            }
+        }
+        return PageX.compact(pg);
     }
 }
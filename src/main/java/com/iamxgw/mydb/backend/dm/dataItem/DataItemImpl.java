@@ -2,44 +2,163 @@ package com.iamxgw.mydb.backend.dm.dataItem;
 
 import com.iamxgw.mydb.backend.dm.DataManagerImpl;
 import com.iamxgw.mydb.backend.dm.page.Page;
+import com.iamxgw.mydb.backend.dm.page.PageX;
+import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
 import com.iamxgw.mydb.common.SubArray;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * DataItem 缓存中的一项，只在有人使用时才引用数据所在的页
+ * 第一个使用者到来时通过页缓存重新取得页并按槽号定位数据，最后一个使用者离开时释放页，
+ * 所以缓存中空闲的 DataItem 不会占住页缓存，页在此期间被驱逐或整理过也没有关系
+ */
 public class DataItemImpl implements DataItem {
 
     static final int OF_VALID = 0;
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
 
+    // ValidFlag 中的标志位
+    static final byte FLAG_INVALID = 1;
+    static final byte FLAG_OVERFLOW = 2;
+
+    // 以下三个视图在每次取得页时重新指向页中的数据
     private SubArray raw;
+    // data() 返回的视图
+    private SubArray data;
+    private Page pg;
+    // 正在使用该 DataItem 的个数，大于 0 时 pg 有效，由 pinLock 保护
+    private int users;
+    private Lock pinLock;
+    // 修改前的内容，第一次 before 时分配，之后复用
     private byte[] oldRaw;
-    private Lock rLock;
-    private Lock wLock;
+    // 不可重入，读锁和写锁视图由 StampedLock 在第一次使用时创建
+    private StampedLock latch;
+    private PageCache pc;
     private DataManagerImpl dm;
     private long uid;
-    private Page pg;
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
-        this.raw = raw;
-        this.oldRaw = oldRaw;
+    public DataItemImpl(long uid, PageCache pc, DataManagerImpl dm) {
+        this.raw = new SubArray(null, 0, 0);
+        this.data = new SubArray(null, 0, 0);
+        this.pc = pc;
         this.dm = dm;
         this.uid = uid;
-        this.pg = pg;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        this.latch = new StampedLock();
+        this.pinLock = new ReentrantLock();
+    }
+
+    /**
+     * 登记一个使用者，第一个使用者负责取得页并定位数据
+     * @return 数据已被回收时返回 false，此时不需要 release
+     * @throws Exception
+     */
+    public boolean pin() throws Exception {
+        pinLock.lock();
+        try {
+            if (users > 0) {
+                users++;
+                return true;
+            }
+            return bind(pc.getPage((int) (uid >>> 32)));
+        } finally {
+            pinLock.unlock();
+        }
+    }
+
+    /**
+     * 不等待地登记一个使用者：已经有人在使用，或者页已经在缓存中时才能成功
+     * @return 是否登记成功，失败时不需要 release
+     */
+    public boolean tryPin() {
+        if (!pinLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (users > 0) {
+                users++;
+                return true;
+            }
+            Page page = pc.getPageIfCached((int) (uid >>> 32));
+            return page != null && bind(page);
+        } finally {
+            pinLock.unlock();
+        }
+    }
+
+    /**
+     * 让视图指向 page 中的数据，调用者需要持有 pinLock 和 page 的引用
+     * @param page
+     * @return 数据已被回收时释放 page 并返回 false
+     */
+    private boolean bind(Page page) {
+        int slot = (int) (uid & ((1L << 16) - 1));
+        int offset = PageX.getItemOffset(page, slot);
+        if (offset == PageX.NO_ITEM) {
+            page.release();
+            return false;
+        }
+        int length = PageX.getItemLength(page, slot);
+        byte[] frame = page.getData();
+        raw.raw = frame;
+        raw.start = offset;
+        raw.end = offset + length;
+        data.raw = frame;
+        data.start = offset + OF_DATA;
+        data.end = offset + length;
+        pg = page;
+        users = 1;
+        return true;
+    }
+
+    /**
+     * 注销一个使用者，最后一个使用者释放页
+     */
+    private void unpin() {
+        pinLock.lock();
+        try {
+            if (--users == 0) {
+                unbind();
+            }
+        } finally {
+            pinLock.unlock();
+        }
+    }
+
+    /**
+     * 释放持有的页，由 DataItem 缓存在驱逐或关闭时调用
+     */
+    public void unbind() {
+        pinLock.lock();
+        try {
+            if (pg != null) {
+                Page page = pg;
+                pg = null;
+                raw.raw = null;
+                data.raw = null;
+                users = 0;
+                page.release();
+            }
+        } finally {
+            pinLock.unlock();
+        }
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start + OF_VALID] == (byte)0;
+        return (raw.raw[raw.start + OF_VALID] & FLAG_INVALID) == 0;
+    }
+
+    @Override
+    public boolean isOverflow() {
+        return (raw.raw[raw.start + OF_VALID] & FLAG_OVERFLOW) != 0;
     }
 
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
+        return data;
     }
 
     /**
@@ -47,9 +166,13 @@ public class DataItemImpl implements DataItem {
      */
     @Override
     public void before() {
-        wLock.lock();
+        latch.asWriteLock().lock();
         pg.setDirty(true);
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        int length = raw.end - raw.start;
+        if (oldRaw == null || oldRaw.length != length) {
+            oldRaw = new byte[length];
+        }
+        System.arraycopy(raw.raw, raw.start, oldRaw, 0, length);
     }
 
     /**
@@ -58,7 +181,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wLock.unlock();
+        latch.asWriteLock().unlock();
     }
 
     /**
@@ -68,32 +191,43 @@ public class DataItemImpl implements DataItem {
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
-        wLock.unlock();
+        latch.asWriteLock().unlock();
     }
 
     @Override
     public void release() {
+        unpin();
         dm.releaseDataItem(this);
     }
 
     @Override
     public void lock() {
-        wLock.lock();
+        latch.asWriteLock().lock();
     }
 
     @Override
     public void unlock() {
-        wLock.unlock();
+        latch.asWriteLock().unlock();
     }
 
     @Override
     public void rLock() {
-        rLock.lock();
+        latch.asReadLock().lock();
     }
 
     @Override
     public void rUnLock() {
-        rLock.unlock();
+        latch.asReadLock().unlock();
+    }
+
+    @Override
+    public long optimisticRead() {
+        return latch.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return latch.validate(stamp);
     }
 
     @Override
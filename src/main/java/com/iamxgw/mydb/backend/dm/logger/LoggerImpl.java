@@ -151,6 +151,8 @@ public class LoggerImpl implements Logger {
 
     /**
      * 记录一条 log
+     * 追加日志和更新全局校验和都在锁内完成，否则并发写日志时，
+     * 全局校验和会按错误的顺序累计，写校验和时移动的 position 也会让别的日志写错位置
      * @param data
      */
     @Override
@@ -161,23 +163,22 @@ public class LoggerImpl implements Logger {
         try {
             fc.position(fc.size());
             fc.write(buf);
+            updateXChecksum(log);
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
     /**
-     * 将 log 的校验和更新到全局校验和 xChecksum 中
+     * 将 log 的校验和更新到全局校验和 xChecksum 中，调用者需要持有锁
      * @param log
      */
     private void updateXChecksum(byte[] log) {
         this.xChecksum = calChecksum(this.xChecksum, log);
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)), 0);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
@@ -0,0 +1,50 @@
+package com.iamxgw.mydb.backend.dm.page;
+
+import com.iamxgw.mydb.backend.utils.Parser;
+
+/**
+ * 溢出页，存放一页放不下的大数据
+ * 大数据按顺序切分到一串连续分配的溢出页中，普通页中只存一个指向第一页的 dataitem
+ * 溢出页结构如下：
+ * [Zero] [NextPgno] [Length] [Data]
+ * Zero 2 字节，恒为 0，对应普通页 FreeSpaceOffset 的位置，用于和普通页区分
+ * NextPgno 4 字节，下一个溢出页的页号，NO_PAGE 表示这是最后一页
+ * Length 2 字节，本页中数据的长度，按无符号数解析
+ * 溢出页写入后不再修改
+ */
+public class OverflowPage {
+    private static final int OF_NEXT = 2;
+    private static final int OF_LENGTH = OF_NEXT + 4;
+    public static final int OF_DATA = OF_LENGTH + 2;
+    public static final int NO_PAGE = 0;
+
+    // 页大小为 pageSize 时，一个溢出页可以放下的数据
+    public static int maxDataSize(int pageSize) {
+        return pageSize - OF_DATA;
+    }
+
+    /**
+     * 生成一个存放 data[offset, offset + length) 的溢出页
+     * @param pageSize
+     * @param next
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static byte[] initRaw(int pageSize, int next, byte[] data, int offset, int length) {
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(next), 0, raw, OF_NEXT, 4);
+        System.arraycopy(Parser.short2Byte((short) length), 0, raw, OF_LENGTH, 2);
+        System.arraycopy(data, offset, raw, OF_DATA, length);
+        return raw;
+    }
+
+    public static int getNext(Page pg) {
+        return Parser.parseInt(pg.getData(), OF_NEXT);
+    }
+
+    public static int getLength(Page pg) {
+        return Parser.parseShort(pg.getData(), OF_LENGTH) & 0xFFFF;
+    }
+}
@@ -2,10 +2,20 @@ package com.iamxgw.mydb.backend.dm.page;
 
 /**
  * 存在内存中的页，区别已持久化到磁盘的抽象页
+ * 页闩基于 StampedLock，不可重入，保护页头、空闲位置等页结构（DataItem 的内容由 DataItem 自己的锁保护）：
+ *  修改页结构时持有写锁 lock/unlock；
+ *  读页时可以持有读锁 rLock/rUnLock，也可以乐观读：先取版本戳，读完后 validate，
+ *  期间没有写者则读到的内容有效，否则加读锁重读。乐观读不写任何共享变量
  */
 public interface Page {
     void lock();
     void unlock();
+    void rLock();
+    void rUnLock();
+    // 开始一次乐观读，返回版本戳，有写者持有写锁时返回 0
+    long optimisticRead();
+    // 自取得 stamp 以来页没有被加过写锁
+    boolean validate(long stamp);
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
@@ -2,14 +2,13 @@ package com.iamxgw.mydb.backend.dm.page;
 
 import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class PageImpl implements Page {
     private int pageNumber;
     private byte[] data;
     private boolean dirty;
-    private Lock lock;
+    private StampedLock latch;
 
     private PageCache pc;
 
@@ -17,17 +16,37 @@ public class PageImpl implements Page {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
-        lock = new ReentrantLock();
+        latch = new StampedLock();
     }
 
     @Override
     public void lock() {
-        lock.lock();
+        latch.asWriteLock().lock();
     }
 
     @Override
     public void unlock() {
-        lock.unlock();
+        latch.asWriteLock().unlock();
+    }
+
+    @Override
+    public void rLock() {
+        latch.asReadLock().lock();
+    }
+
+    @Override
+    public void rUnLock() {
+        latch.asReadLock().unlock();
+    }
+
+    @Override
+    public long optimisticRead() {
+        return latch.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return latch.validate(stamp);
     }
 
     @Override
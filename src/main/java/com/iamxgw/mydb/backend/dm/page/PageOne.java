@@ -1,6 +1,6 @@
 package com.iamxgw.mydb.backend.dm.page;
 
-import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.utils.Parser;
 import com.iamxgw.mydb.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -10,24 +10,57 @@ import java.util.Arrays;
  * MyDB 每次启动时，会在 100-107 字节处填入一个随机字节，当 MyDB 关闭时，会将其拷贝到第 108-115 字节
  * 用于判断数据库上次是不是正常关闭
  * 如果异常关闭，则 100-107 字节和 108-115 字节的内容会不同
+ * 116-119 字节记录数据库的页大小，在新建时写入，打开时由 PageCache 读出
+ * 120-121 字节记录数据页的格式版本，打开时检查，拒绝旧格式的数据库文件
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_PAGE_SIZE = OF_VC + 2 * LEN_VC;
+    // 打开数据库时需要读出的文件头长度
+    public static final int HEADER_LEN = OF_PAGE_SIZE + 4;
+    private static final int OF_FORMAT = HEADER_LEN;
+    // 数据页格式版本，2 为槽位目录格式，uid 的低位为槽号
+    private static final short FORMAT_VERSION = 2;
 
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setVcOpen(raw);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.short2Byte(FORMAT_VERSION), 0, raw, OF_FORMAT, 2);
         return raw;
     }
 
+    /**
+     * 检查数据页格式版本是否与当前实现一致
+     * @param pg
+     * @return
+     */
+    public static boolean checkFormat(Page pg) {
+        return Parser.parseShort(Arrays.copyOfRange(pg.getData(), OF_FORMAT, OF_FORMAT + 2)) == FORMAT_VERSION;
+    }
+
+    /**
+     * 从数据库文件头中解析页大小
+     * @param header 数据库文件开头的 HEADER_LEN 个字节
+     * @return
+     */
+    public static int parsePageSize(byte[] header) {
+        return Parser.parseInt(Arrays.copyOfRange(header, OF_PAGE_SIZE, HEADER_LEN));
+    }
+
     /**
      * 启动时设置 100-107 字节
      * @param pg
      */
     public static void setVcOpen(Page pg) {
-        pg.setDirty(true);
-        setVcOpen(pg.getData());
+        pg.lock();
+        try {
+            pg.setDirty(true);
+            setVcOpen(pg.getData());
+        } finally {
+            pg.unlock();
+        }
     }
 
     private static void setVcOpen(byte[] raw) {
@@ -39,16 +72,45 @@ public class PageOne {
      * @param pg
      */
     public static void setVcClose(Page pg) {
-        pg.setDirty(true);
-        setVcClose(pg.getData());
+        pg.lock();
+        try {
+            pg.setDirty(true);
+            setVcClose(pg.getData());
+        } finally {
+            pg.unlock();
+        }
     }
 
     private static void setVcClose(byte[] raw) {
         System.arraycopy(raw, OF_VC, raw, OF_VC + LEN_VC, LEN_VC);
     }
 
+    /**
+     * 获取 100-107 字节，即本次启动时填入的 ValidCheck
+     * @param pg
+     * @return
+     */
+    public static byte[] getVc(Page pg) {
+        return Arrays.copyOfRange(pg.getData(), OF_VC, OF_VC + LEN_VC);
+    }
+
+    /**
+     * 先乐观读，期间有写者时加读锁重读
+     * @param pg
+     * @return
+     */
     public static boolean checkVc(Page pg) {
-        return checkVc(pg.getData());
+        long stamp = pg.optimisticRead();
+        boolean valid = checkVc(pg.getData());
+        if (pg.validate(stamp)) {
+            return valid;
+        }
+        pg.rLock();
+        try {
+            return checkVc(pg.getData());
+        } finally {
+            pg.rUnLock();
+        }
     }
 
     private static boolean checkVc(byte[] raw) {
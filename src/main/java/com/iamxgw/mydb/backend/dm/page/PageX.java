@@ -1,86 +1,262 @@
 package com.iamxgw.mydb.backend.dm.page;
 
-import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
 import com.iamxgw.mydb.backend.utils.Parser;
 
 import java.util.Arrays;
 
 /**
- * PageX 管理普通页面
+ * PageX 管理普通页面，采用槽页结构
  * 普通页结构如下：
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset 大小为 2 字节，表示页空闲位置开始的偏移
+ * [FreeSpaceOffset] [SlotCount] [Data] ... [Free] ... [Slot(n-1)] ... [Slot1] [Slot0]
+ * FreeSpaceOffset 大小为 2 字节，表示数据区空闲位置开始的偏移
+ * SlotCount 大小为 2 字节，表示槽目录中槽的个数
+ * 槽目录从页尾向前增长，每个槽 4 字节：[Offset 2] [Length 2]，记录一个数据在页内的位置和长度
+ * Offset 为 0 的槽表示数据已被回收，槽号不会被复用
+ *
+ * 上层通过槽号定位数据，数据在页内移动（compact）时只需修改槽中的 Offset，槽号保持不变
+ * 普通页的 FreeSpaceOffset 不小于 4，溢出页和还没写入过的页该处为 0，以此区分普通页
+ * 所有 2 字节字段都按无符号数解析，页大小由 PageCache 决定，64KB 的页最后一个字节不使用
  */
 public class PageX {
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final short OF_SLOT_COUNT = 2;
+    private static final short OF_DATA = 4;
+    private static final int SLOT_SIZE = 4;
+    // 2 字节字段能表示的最大值
+    private static final int MAX_U16 = 0xFFFF;
+    // 槽中的 Offset 为该值表示数据已被回收
+    public static final int NO_ITEM = 0;
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+    /**
+     * 页大小为 pageSize 时，一个空页可以放下的最大数据
+     * @param pageSize
+     * @return
+     */
+    public static int maxFreeSpace(int pageSize) {
+        return dataEnd(pageSize) - OF_DATA - SLOT_SIZE;
+    }
+
+    /**
+     * 页大小为 pageSize 时，一页最多能有的槽数
+     * @param pageSize
+     * @return
+     */
+    public static int maxSlots(int pageSize) {
+        return (dataEnd(pageSize) - OF_DATA) / SLOT_SIZE;
+    }
+
+    private static int dataEnd(int pageSize) {
+        return Math.min(pageSize, MAX_U16);
+    }
+
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        setU16(raw, OF_FREE, OF_DATA);
+        setU16(raw, OF_SLOT_COUNT, 0);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setU16(byte[] raw, int pos, int value) {
+        System.arraycopy(Parser.short2Byte((short) value), 0, raw, pos, 2);
+    }
+
+    private static int getU16(byte[] raw, int pos) {
+        return Parser.parseShort(raw, pos) & MAX_U16;
     }
 
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    public static int getFSO(Page pg) {
+        return getU16(pg.getData(), OF_FREE);
+    }
+
+    // 是否为普通页，溢出页和还没写入过的页不是
+    public static boolean isDataPage(Page pg) {
+        return getFSO(pg) >= OF_DATA;
+    }
+
+    public static int getSlotCount(Page pg) {
+        return getU16(pg.getData(), OF_SLOT_COUNT);
+    }
+
+    // 第 slot 个槽在页中的位置
+    private static int slotPos(byte[] raw, int slot) {
+        return dataEnd(raw.length) - (slot + 1) * SLOT_SIZE;
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int length) {
+        int pos = slotPos(raw, slot);
+        setU16(raw, pos, offset);
+        setU16(raw, pos + 2, length);
+    }
+
+    /**
+     * 获取第 slot 个数据在页内的偏移，槽不存在或数据已被回收时返回 NO_ITEM
+     * @param pg
+     * @param slot
+     * @return
+     */
+    public static int getItemOffset(Page pg, int slot) {
+        byte[] raw = pg.getData();
+        if (slot < 0 || slot >= getU16(raw, OF_SLOT_COUNT)) {
+            return NO_ITEM;
+        }
+        return getU16(raw, slotPos(raw, slot));
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_DATA));
-//        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    public static int getItemLength(Page pg, int slot) {
+        byte[] raw = pg.getData();
+        return getU16(raw, slotPos(raw, slot) + 2);
     }
 
     /**
-     * 将 raw 数据插入到 pg 中，并返回插入位置。注意：插入数据不可以超过页大小！
+     * 将 raw 数据插入到 pg 中，并返回分配的槽号。注意：插入数据不可以超过 getFreeSpace！
      * @param pg
      * @param raw
      * @return
      */
-    public static short insert(Page pg, byte[] raw) {
+    public static int insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        byte[] data = pg.getData();
+        int offset = getU16(data, OF_FREE);
+        int slot = getU16(data, OF_SLOT_COUNT);
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setU16(data, OF_FREE, offset + raw.length);
+        setU16(data, OF_SLOT_COUNT, slot + 1);
+        setSlot(data, slot, offset, raw.length);
+        return slot;
     }
 
     /**
-     * 获取 pg 剩余页的大小
+     * 获取 pg 还能插入的最大数据大小，已经扣除了新槽占用的空间
      * @param pg
      * @return
      */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        // 新槽的位置即为数据区可以用到的末尾
+        int free = slotPos(raw, getU16(raw, OF_SLOT_COUNT)) - getU16(raw, OF_FREE);
+        return Math.max(free, 0);
+    }
+
+    /**
+     * 从 raws[from] 开始，计算按顺序最多有几个数据可以一起插入 pg
+     * @param pg
+     * @param raws
+     * @param from
+     * @return
+     */
+    public static int countFits(Page pg, byte[][] raws, int from) {
+        byte[] raw = pg.getData();
+        // 数据区末尾到槽目录开头之间的空间
+        int free = slotPos(raw, getU16(raw, OF_SLOT_COUNT) - 1) - getU16(raw, OF_FREE);
+        int count = 0;
+        for (int i = from; i < raws.length; ++i) {
+            free -= raws[i].length + SLOT_SIZE;
+            if (free < 0) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 回收第 slot 个数据，数据占用的空间在下一次 compact 时整理出来
+     * @param pg
+     * @param slot
+     */
+    public static void free(Page pg, int slot) {
+        pg.setDirty(true);
+        setSlot(pg.getData(), slot, NO_ITEM, 0);
+    }
+
+    /**
+     * 将页内所有未被回收的数据按原有顺序紧密排列到数据区开头，并更新槽中的偏移
+     * 调用者需要保证没有其他线程持有该页上的数据
+     * @param pg
+     * @return 整理出的空间大小
+     */
+    public static int compact(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getU16(raw, OF_SLOT_COUNT);
+        // 高位为偏移，低 16 位为槽号，排序后即按偏移从小到大排列
+        long[] items = new long[count];
+        int live = 0;
+        for (int slot = 0; slot < count; ++slot) {
+            int offset = getU16(raw, slotPos(raw, slot));
+            if (offset != NO_ITEM) {
+                items[live++] = ((long) offset << 16) | slot;
+            }
+        }
+        // 按偏移从小到大移动，每个数据只会向前移，不会覆盖还没移动的数据
+        Arrays.sort(items, 0, live);
+        int oldFSO = getU16(raw, OF_FREE);
+        int fso = OF_DATA;
+        for (int i = 0; i < live; ++i) {
+            int pos = slotPos(raw, (int) (items[i] & MAX_U16));
+            int offset = getU16(raw, pos);
+            int length = getU16(raw, pos + 2);
+            if (offset != fso) {
+                System.arraycopy(raw, offset, raw, fso, length);
+                setU16(raw, pos, fso);
+            }
+            fso += length;
+        }
+        setU16(raw, OF_FREE, fso);
+        pg.setDirty(true);
+        return oldFSO - fso;
     }
 
     /**
-     * 将 raw 数据「恢复」到 offset 位置，并将 pg 的 offset 更新（取较大的 offset）
-     * 在 Recover 的 redo insert 时会使用
+     * 将 raw 数据「恢复」到第 slot 个槽，在 Recover 的 redo/undo insert 时会使用
+     * 槽已存在时原地覆盖；槽已被回收时跳过；槽还不存在时分配空间，中间还没出现过的槽记为已回收
+     * 新建的页在崩溃前没有写进文件时读出来全是 0，需要先初始化页头
      * @param pg
      * @param raw
-     * @param offset
+     * @param slot
+     * @return 空间不够时返回 false，调用者需要回收空间后重试
      */
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    public static boolean recoverInsert(Page pg, byte[] raw, int slot) {
+        byte[] data = pg.getData();
+        if (getU16(data, OF_FREE) < OF_DATA) {
+            setU16(data, OF_FREE, OF_DATA);
+            setU16(data, OF_SLOT_COUNT, 0);
+        }
+        int count = getU16(data, OF_SLOT_COUNT);
+        if (slot < count) {
+            int pos = slotPos(data, slot);
+            int offset = getU16(data, pos);
+            if (offset != NO_ITEM) {
+                pg.setDirty(true);
+                System.arraycopy(raw, 0, data, offset, Math.min(raw.length, getU16(data, pos + 2)));
+            }
+            return true;
+        }
+        int fso = getU16(data, OF_FREE);
+        if (slotPos(data, slot) - fso < raw.length) {
+            return false;
+        }
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        short rawFSO = getFSO(pg.getData());
-        if (rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset + raw.length));
+        for (int i = count; i < slot; ++i) {
+            setSlot(data, i, NO_ITEM, 0);
         }
+        System.arraycopy(raw, 0, data, fso, raw.length);
+        setU16(data, OF_FREE, fso + raw.length);
+        setU16(data, OF_SLOT_COUNT, slot + 1);
+        setSlot(data, slot, fso, raw.length);
+        return true;
     }
 
     /**
-     * 将 raw 数据插入到 offset 位置，但是不更新 offset
+     * 将 raw 数据写入第 slot 个数据，槽不存在或已被回收时跳过
      * @param pg
      * @param raw
-     * @param offset
+     * @param slot
      */
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void recoverUpdate(Page pg, byte[] raw, int slot) {
+        int offset = getItemOffset(pg, slot);
+        if (offset == NO_ITEM) {
+            return;
+        }
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
@@ -0,0 +1,166 @@
+package com.iamxgw.mydb.backend.dm.pageCache;
+
+import com.iamxgw.mydb.backend.common.ReplacementPolicy;
+import com.iamxgw.mydb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 使用内存映射读写数据库文件的页缓存
+ * 数据库文件按 SEGMENT_SIZE 分段映射，缺页时直接从映射区拷贝到页帧，写回时拷贝回映射区，
+ * 不再为每次缺页和写回发起 read/write 系统调用，落盘时对被写过的段调用 force
+ *
+ * 映射一个段会把文件扩展到段尾，所以不再按 extent 扩展文件
+ */
+public class MappedPageCache extends PageCacheImpl {
+    // 每个映射段 64MB
+    static final int SEGMENT_SIZE = 1 << 26;
+    private final int pagesPerSegment;
+
+    private FileChannel fc;
+    // 已映射的段，下标为段号，未映射为 null
+    // 数组发布后不再修改，映射新段时复制一份再整体替换，无锁读取时才能看到完整的段
+    private volatile MappedByteBuffer[] segments;
+    // 自上次 force 以来被写过的段
+    private boolean[] dirtySegments;
+
+    MappedPageCache(RandomAccessFile file, FileChannel fileChannel, int maxResources, int pageSize, ReplacementPolicy policy) {
+        super(file, fileChannel, maxResources, pageSize, policy, 1);
+        this.fc = fileChannel;
+        this.pagesPerSegment = SEGMENT_SIZE / pageSize;
+        this.segments = new MappedByteBuffer[0];
+        this.dirtySegments = new boolean[0];
+    }
+
+    /**
+     * 获取第 pgno 页所在的段，段未映射时进行映射
+     * @param pgno
+     * @return
+     */
+    private MappedByteBuffer segmentOf(int pgno) {
+        int idx = (pgno - 1) / pagesPerSegment;
+        MappedByteBuffer[] segs = segments;
+        if (idx < segs.length && segs[idx] != null) {
+            return segs[idx];
+        }
+        synchronized (this) {
+            if (idx < segments.length && segments[idx] != null) {
+                return segments[idx];
+            }
+            MappedByteBuffer seg = null;
+            try {
+                seg = fc.map(FileChannel.MapMode.READ_WRITE, (long) idx * SEGMENT_SIZE, SEGMENT_SIZE);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            MappedByteBuffer[] newSegs = Arrays.copyOf(segments, Math.max(segments.length, idx + 1));
+            newSegs[idx] = seg;
+            if (idx >= dirtySegments.length) {
+                dirtySegments = Arrays.copyOf(dirtySegments, idx + 1);
+            }
+            segments = newSegs;
+            return seg;
+        }
+    }
+
+    @Override
+    protected void extendFile(int from, int to) {
+    }
+
+    private int offsetInSegment(int pgno) {
+        return ((pgno - 1) % pagesPerSegment) * getPageSize();
+    }
+
+    @Override
+    protected void readPage(int pgno, byte[] frame) {
+        ByteBuffer seg = segmentOf(pgno).duplicate();
+        seg.position(offsetInSegment(pgno));
+        seg.get(frame, 0, frame.length);
+    }
+
+    @Override
+    protected void writePage(int pgno, byte[] data) {
+        putPage(pgno, data, 0);
+    }
+
+    private void putPage(int pgno, byte[] src, int offset) {
+        ByteBuffer seg = segmentOf(pgno).duplicate();
+        seg.position(offsetInSegment(pgno));
+        seg.put(src, offset, getPageSize());
+        synchronized (this) {
+            dirtySegments[(pgno - 1) / pagesPerSegment] = true;
+        }
+    }
+
+    @Override
+    protected void readPages(int pgno, ByteBuffer[] bufs, int offset, int length) {
+        for (int i = 0; i < length; ++i) {
+            readPage(pgno + i, bufs[offset + i].array());
+        }
+    }
+
+    @Override
+    protected void writePages(int pgno, ByteBuffer run) {
+        int pageSize = getPageSize();
+        int length = run.remaining() / pageSize;
+        int offset = run.arrayOffset() + run.position();
+        for (int i = 0; i < length; ++i) {
+            putPage(pgno + i, run.array(), offset + i * pageSize);
+        }
+        run.position(run.limit());
+    }
+
+    @Override
+    protected void forceFile() {
+        MappedByteBuffer[] toForce;
+        synchronized (this) {
+            toForce = new MappedByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; ++i) {
+                if (dirtySegments[i]) {
+                    toForce[i] = segments[i];
+                    dirtySegments[i] = false;
+                }
+            }
+        }
+        for (MappedByteBuffer seg : toForce) {
+            if (seg != null) {
+                seg.force();
+            }
+        }
+    }
+
+    /**
+     * 截断文件，并丢弃越过新文件末尾的映射段，之后再访问这些段时会重新映射
+     * @param size
+     */
+    @Override
+    protected void truncateFile(long size) {
+        forceFile();
+        synchronized (this) {
+            int keep = (int) (size / SEGMENT_SIZE);
+            if (keep < segments.length) {
+                segments = Arrays.copyOf(segments, keep);
+                dirtySegments = Arrays.copyOf(dirtySegments, keep);
+            }
+        }
+        super.truncateFile(size);
+    }
+
+    /**
+     * 落盘后丢弃所有映射段，再截断并关闭文件
+     */
+    @Override
+    protected void closeFile() {
+        forceFile();
+        synchronized (this) {
+            segments = new MappedByteBuffer[0];
+            dirtySegments = new boolean[0];
+        }
+        super.closeFile();
+    }
+}
@@ -1,27 +1,108 @@
 package com.iamxgw.mydb.backend.dm.pageCache;
 
+import com.iamxgw.mydb.backend.common.ReplacementPolicy;
 import com.iamxgw.mydb.backend.dm.page.Page;
+import com.iamxgw.mydb.backend.dm.page.PageOne;
 import com.iamxgw.mydb.backend.utils.Panic;
 import com.iamxgw.mydb.common.Error;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
 
 public interface PageCache {
+    // 默认页大小
     public static final int PAGE_SIZE = 1 << 13;
+    // 页大小必须是 2 的幂，范围为 [MIN_PAGE_SIZE, MAX_PAGE_SIZE]
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
+    // 数据库文件每次扩展的大小，会向下取整为页大小的整数倍，范围为 [页大小, MAX_EXTENT_SIZE]
+    public static final int DEFAULT_EXTENT_SIZE = 1 << 20;
+    public static final int MAX_EXTENT_SIZE = 1 << 26;
 
     int newPage(byte[] initData);
+    // 连续分配 count 个新页，返回第一个页号，页的内容由 writeNewPages 写入
+    int allocPages(int count);
+    // 将 initData 依次写入从 pgno 开始的新页，这些页必须由 allocPages 分配且还没有被读入缓存
+    void writeNewPages(int pgno, byte[][] initData);
     Page getPage(int pgno) throws Exception;
+    // 以扫描方式获取页，扫描读入的页不会挤掉缓存中的热点页
+    Page getPage(int pgno, boolean scan) throws Exception;
+    // 页已经在缓存中时获取它，否则返回 null，不会读文件也不会等待
+    Page getPageIfCached(int pgno);
     void close();
     void release(Page pg);
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    // [1, 返回值] 中的页都已写入文件，之后的页可能已分配但还没写入，扫描不能越过它
+    int getWrittenPageNumber();
     void flushPage(Page pg);
+    // 提示即将访问 [pgno, pgno + count) 的页，提前批量读入缓存
+    void prefetch(int pgno, int count);
+    int getPageSize();
+    // 获取统计信息的快照
+    PageCacheStats stats();
+    // 页在缓存中且没有被引用时，独占该页执行 action，期间获取该页的线程会等待，返回是否执行了 action
+    boolean applyIfIdle(int pgno, Consumer<Page> action);
 
-    public static PageCacheImpl create(String path, long memory) {
+    /**
+     * 页缓存读写数据库文件的方式
+     * FILE_CHANNEL：通过 FileChannel 读写
+     * MMAP：通过内存映射读写，适合读多写少的场景
+     */
+    enum Mode {
+        FILE_CHANNEL, MMAP
+    }
+
+    public static PageCache create(String path, long memory) {
+        return create(path, memory, PAGE_SIZE, ReplacementPolicy.twoQueue(), Mode.FILE_CHANNEL);
+    }
+
+    public static PageCache create(String path, long memory, int pageSize) {
+        return create(path, memory, pageSize, ReplacementPolicy.twoQueue(), Mode.FILE_CHANNEL);
+    }
+
+    public static PageCache create(String path, long memory, Mode mode) {
+        return create(path, memory, PAGE_SIZE, ReplacementPolicy.twoQueue(), mode);
+    }
+
+    public static PageCache create(String path, long memory, ReplacementPolicy policy, Mode mode) {
+        return create(path, memory, PAGE_SIZE, policy, mode);
+    }
+
+    /**
+     * 新建页大小为 pageSize 的数据库文件，并使用 policy 作为页面置换策略，mode 作为读写方式
+     * 页大小需要由上层写入 PageOne，之后打开时才能读出
+     * @param path
+     * @param memory
+     * @param pageSize
+     * @param policy
+     * @param mode
+     * @return
+     */
+    public static PageCache create(String path, long memory, int pageSize, ReplacementPolicy policy, Mode mode) {
+        return create(path, memory, pageSize, policy, mode, DEFAULT_EXTENT_SIZE);
+    }
+
+    /**
+     * 新建数据库文件，文件每次按 extentSize 扩展
+     * @param path
+     * @param memory
+     * @param pageSize
+     * @param policy
+     * @param mode
+     * @param extentSize
+     * @return
+     */
+    public static PageCache create(String path, long memory, int pageSize, ReplacementPolicy policy, Mode mode, int extentSize) {
+        if (!isValidPageSize(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -42,10 +123,22 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int) memory / PAGE_SIZE);
+        return newPageCache(f, raf, fc, memory, pageSize, policy, mode, extentSize);
+    }
+
+    public static PageCache open(String path, long memory) {
+        return open(path, memory, ReplacementPolicy.twoQueue(), Mode.FILE_CHANNEL);
     }
 
-    public static PageCacheImpl open(String path, long memory) {
+    public static PageCache open(String path, long memory, Mode mode) {
+        return open(path, memory, ReplacementPolicy.twoQueue(), mode);
+    }
+
+    public static PageCache open(String path, long memory, ReplacementPolicy policy, Mode mode) {
+        return open(path, memory, policy, mode, DEFAULT_EXTENT_SIZE);
+    }
+
+    public static PageCache open(String path, long memory, ReplacementPolicy policy, Mode mode, int extentSize) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -58,6 +151,47 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory / PAGE_SIZE);
+        return newPageCache(f, raf, fc, memory, readPageSize(fc), policy, mode, extentSize);
+    }
+
+    static boolean isValidPageSize(int pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE
+                && (pageSize & (pageSize - 1)) == 0;
+    }
+
+    /**
+     * 从 PageOne 中读出数据库的页大小
+     * 文件还没有 PageOne，或者 PageOne 中没有记录合法的页大小时，使用默认页大小
+     * @param fc
+     * @return
+     */
+    static int readPageSize(FileChannel fc) {
+        ByteBuffer buf = ByteBuffer.allocate(PageOne.HEADER_LEN);
+        try {
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, buf.position()) < 0) {
+                    return PAGE_SIZE;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        int pageSize = PageOne.parsePageSize(buf.array());
+        return isValidPageSize(pageSize) ? pageSize : PAGE_SIZE;
+    }
+
+    private static PageCache newPageCache(File f, RandomAccessFile raf, FileChannel fc, long memory, int pageSize,
+                                          ReplacementPolicy policy, Mode mode, int extentSize) {
+        int maxResources = (int) (memory / pageSize);
+        int extentPages = Math.max(1, Math.min(extentSize, MAX_EXTENT_SIZE) / pageSize);
+        PageCacheImpl pc;
+        if (mode == Mode.MMAP) {
+            pc = new MappedPageCache(raf, fc, maxResources, pageSize, policy);
+        } else {
+            pc = new PageCacheImpl(raf, fc, maxResources, pageSize, policy, extentPages);
+        }
+        pc.startWriter();
+        pc.registerMBean(f.getAbsolutePath());
+        return pc;
     }
 }
@@ -1,32 +1,102 @@
 package com.iamxgw.mydb.backend.dm.pageCache;
 
 import com.iamxgw.mydb.backend.common.AbstractCache;
+import com.iamxgw.mydb.backend.common.LatencyHistogram;
+import com.iamxgw.mydb.backend.common.ReplacementPolicy;
 import com.iamxgw.mydb.backend.dm.page.Page;
 import com.iamxgw.mydb.backend.dm.page.PageImpl;
 import com.iamxgw.mydb.backend.utils.Panic;
 import com.iamxgw.mydb.common.Error;
 
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
+    // 后台写回时，每批最多写回的页数
+    private static final int WRITE_BATCH = 64;
+    // 一次预读 I/O 最多读入的页数
+    private static final int READ_AHEAD_PAGES = 16;
+    // 连续访问这么多个相邻页后开始顺序预读
+    private static final int SEQUENTIAL_TRIGGER = 4;
+    // 扩展文件时一次写入的全零页数
+    private static final int ZERO_FILL_PAGES = 16;
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
+    // 页大小，新建时指定，打开时从 PageOne 中读出
+    private int pageSize;
+    private PageFramePool framePool;
+    private int capacity;
+    // 预读使用的连续缓冲区，每个可以放下 READ_AHEAD_PAGES 页，用完后放回
+    private ConcurrentLinkedQueue<ByteBuffer> readRuns;
+
+    // 顺序访问检测，只是启发式的，多线程下允许不精确
+    private int lastPgno;
+    private int sequentialRun;
+    private int readAheadEnd;
+
+    // 已被释放、尚未写回的脏页
+    private BitSet dirtyPages;
+    // 已被写页线程暂存、还没写进文件的页，这些页被驱逐时要等这一批写完
+    private BitSet writingPages;
+    private int dirtyCount;
+    private Lock dirtyLock;
+    // 脏页数达到该值时唤醒写页线程
+    private int dirtyThreshold;
+    // 有页写入了文件但还没有 force
+    private AtomicBoolean unforced;
+    private PageWriter writer;
+    // 写页线程专用的暂存区，可以放下 WRITE_BATCH 页，第 i 个暂存的页放在 [i * pageSize, (i + 1) * pageSize)
+    // 页数据先拷贝到这里再写回，拷贝期间页不可访问；页号连续的页在暂存区中也相邻，可以一次写回
+    private ByteBuffer staging;
+    private int[] stagedPgnos;
+    // 写页线程从暂存到写完一批的期间持有，驱逐脏页时也要持有，
+    // 保证页的新内容不会被写页线程暂存的旧内容覆盖
+    private Lock writeLock;
 
     // 记录当前打开的数据库文件有多少页，在数据库文件被打开时计算，在新建页面时自增
     private AtomicInteger pageNumbers;
+    // 已分配但页内容还没写入文件的页，预读和扫描读到这些页会在缓存中留下全零的页
+    private BitSet unwrittenPages;
+    // [1, writtenPages] 中的页都已写入文件，预读和扫描不越过这里
+    private volatile int writtenPages;
+    // 分配页号和更新 unwrittenPages 时持有
+    private Lock allocLock;
+    // 文件按 extentPages 页为单位扩展，已经扩展出来的页数，可能大于 pageNumbers
+    // 新页在已扩展的区域内分配时只写页本身，不改变文件长度
+    private int extentPages;
+    private volatile int allocatedPages;
+    private Lock extentLock;
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResources) {
-        super(maxResources);
+    // 统计信息，见 stats()
+    private LatencyHistogram getPageLatency;
+    private LatencyHistogram missLatency;
+    private LatencyHistogram flushLatency;
+    private LatencyHistogram forceLatency;
+    private LongAdder pagesRead;
+    private LongAdder pagesWritten;
+    private LongAdder readIos;
+    private LongAdder writeIos;
+    // 注册到 JMX 的名字，没有注册时为 null
+    private ObjectName mbeanName;
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResources, int pageSize,
+                  ReplacementPolicy policy, int extentPages) {
+        super(maxResources, policy);
         if (maxResources < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -38,35 +108,270 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageSize = pageSize;
+        this.framePool = new PageFramePool(maxResources, pageSize);
+        this.capacity = maxResources;
+        this.readRuns = new ConcurrentLinkedQueue<>();
+        this.dirtyPages = new BitSet();
+        this.writingPages = new BitSet();
+        this.dirtyLock = new ReentrantLock();
+        this.dirtyThreshold = Math.max(1, maxResources / 4);
+        this.unforced = new AtomicBoolean(false);
+        this.writer = new PageWriter(this);
+        this.staging = ByteBuffer.allocate(WRITE_BATCH * pageSize);
+        this.stagedPgnos = new int[WRITE_BATCH];
+        this.writeLock = new ReentrantLock();
+        this.pageNumbers = new AtomicInteger((int) (length / pageSize));
+        this.unwrittenPages = new BitSet();
+        this.writtenPages = pageNumbers.get();
+        this.allocLock = new ReentrantLock();
+        this.extentPages = extentPages;
+        this.allocatedPages = pageNumbers.get();
+        this.extentLock = new ReentrantLock();
+        this.getPageLatency = new LatencyHistogram();
+        this.missLatency = new LatencyHistogram();
+        this.flushLatency = new LatencyHistogram();
+        this.forceLatency = new LatencyHistogram();
+        this.pagesRead = new LongAdder();
+        this.pagesWritten = new LongAdder();
+        this.readIos = new LongAdder();
+        this.writeIos = new LongAdder();
+    }
+
+    /**
+     * 启动后台写页线程，在构造完成后由 PageCache.create/open 调用
+     */
+    void startWriter() {
+        writer.start();
+    }
+
+    /**
+     * 以 name 把统计信息注册到 JMX，关闭时注销
+     * @param name
+     */
+    void registerMBean(String name) {
+        mbeanName = PageCacheMonitor.register(this, name);
     }
 
     /**
      * 新建一个 page，并返回其 pgno
+     * 新页只写入文件，由写页线程的下一批统一 force
      * @param initData
      * @return
      */
     @Override
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        int pgno = reservePages(1);
+        ensureAllocated(pgno);
+        writePage(pgno, initData);
+        pagesWritten.increment();
+        unforced.set(true);
+        markWritten(pgno, 1);
         return pgno;
     }
 
+    @Override
+    public int allocPages(int count) {
+        int first = reservePages(count);
+        ensureAllocated(first + count - 1);
+        return first;
+    }
+
+    /**
+     * 分配 count 个连续的页号，在页内容写入文件之前记为未写入
+     * @param count
+     * @return 第一个页号
+     */
+    private int reservePages(int count) {
+        allocLock.lock();
+        try {
+            int last = pageNumbers.addAndGet(count);
+            unwrittenPages.set(last - count + 1, last + 1);
+            return last - count + 1;
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    /**
+     * 页 [pgno, pgno + count) 的内容已经写入文件，推进 writtenPages
+     * @param pgno
+     * @param count
+     */
+    private void markWritten(int pgno, int count) {
+        allocLock.lock();
+        try {
+            unwrittenPages.clear(pgno, pgno + count);
+            int first = unwrittenPages.nextSetBit(0);
+            writtenPages = first < 0 ? pageNumbers.get() : first - 1;
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    /**
+     * 保证文件中已经有第 pgno 页，没有时把文件扩展到 pgno 所在 extent 的末尾
+     * @param pgno
+     */
+    private void ensureAllocated(int pgno) {
+        if (pgno <= allocatedPages) {
+            return;
+        }
+        extentLock.lock();
+        try {
+            if (pgno <= allocatedPages) {
+                return;
+            }
+            int end = ((pgno - 1) / extentPages + 1) * extentPages;
+            extendFile(allocatedPages + 1, end);
+            allocatedPages = end;
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
+    /**
+     * 将页 [from, to] 写为全零，让文件系统一次分配好这一段的磁盘空间
+     * 这些页还没有被分配出去，不会和其他写入冲突
+     * @param from
+     * @param to
+     */
+    protected void extendFile(int from, int to) {
+        ByteBuffer zeros = ByteBuffer.allocate(Math.min(ZERO_FILL_PAGES, to - from + 1) * pageSize);
+        long offset = pageOffset(from);
+        long end = pageOffset(to + 1);
+        try {
+            while (offset < end) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), end - offset));
+                offset += fc.write(zeros, offset);
+                writeIos.increment();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 连续的新页先拼接到一个缓冲区，再合成一次写入
+     * @param pgno
+     * @param initData
+     */
+    @Override
+    public void writeNewPages(int pgno, byte[][] initData) {
+        ByteBuffer run = ByteBuffer.allocate(initData.length * pageSize);
+        for (byte[] data : initData) {
+            run.put(data, 0, pageSize);
+        }
+        run.flip();
+        writePages(pgno, run);
+        pagesWritten.add(initData.length);
+        unforced.set(true);
+        markWritten(pgno, initData.length);
+    }
+
     @Override
     public Page getPage(int pgno) throws Exception {
-        return get((long)pgno);
+        return getPage(pgno, false);
     }
 
     @Override
-    public void close() {
+    public Page getPage(int pgno, boolean scan) throws Exception {
+        long start = System.nanoTime();
+        try {
+            detectSequential(pgno);
+            return get((long)pgno, scan);
+        } finally {
+            getPageLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public Page getPageIfCached(int pgno) {
+        return getIfPresent((long) pgno);
+    }
+
+    /**
+     * 连续访问相邻页时，提前把后续的页一次读入
+     * @param pgno
+     */
+    private void detectSequential(int pgno) {
+        if (pgno == lastPgno + 1) {
+            sequentialRun++;
+        } else if (pgno != lastPgno) {
+            sequentialRun = 0;
+        }
+        lastPgno = pgno;
+        if (sequentialRun >= SEQUENTIAL_TRIGGER && pgno > readAheadEnd) {
+            readAheadEnd = pgno + READ_AHEAD_PAGES - 1;
+            prefetch(pgno, READ_AHEAD_PAGES);
+        }
+    }
 
+    /**
+     * 预读 [pgno, pgno + count) 中不在缓存里的页，相邻的页合并成一次 I/O
+     * 预读的页进入缓存时不被引用；缓存腾不出位置时跳过，不会等待
+     * 单次预读最多读入缓存容量一半的页，避免预读的页把彼此挤出去
+     * 不会越过 writtenPages，已分配但还没写入的页读出来是全零
+     * @param pgno
+     * @param count
+     */
+    @Override
+    public void prefetch(int pgno, int count) {
+        int first = Math.max(pgno, 1);
+        int end = Math.min(first + Math.min(count, capacity / 2), writtenPages + 1);
+        ByteBuffer[] bufs = new ByteBuffer[READ_AHEAD_PAGES];
+        int runStart = 0;
+        int n = 0;
+        for (int p = first; p < end; ++p) {
+            boolean claimed = claim(p);
+            if (n > 0 && (!claimed || n == READ_AHEAD_PAGES)) {
+                readClaimed(runStart, bufs, n);
+                n = 0;
+            }
+            if (claimed) {
+                if (n == 0) {
+                    runStart = p;
+                }
+                bufs[n++] = ByteBuffer.wrap(framePool.acquire());
+            }
+        }
+        if (n > 0) {
+            readClaimed(runStart, bufs, n);
+        }
+    }
+
+    private void readClaimed(int pgno, ByteBuffer[] bufs, int n) {
+        try {
+            readPages(pgno, bufs, 0, n);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < n; ++i) {
+                framePool.recycle(bufs[i].array());
+                abandon(pgno + i);
+            }
+            throw e;
+        }
+        pagesRead.add(n);
+        for (int i = 0; i < n; ++i) {
+            fill(pgno + i, new PageImpl(pgno + i, bufs[i].array(), this));
+        }
+    }
+
+    /**
+     * 停止写页线程，将缓存中的页全部写回并落盘，然后关闭数据库文件
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        super.close();
+        force();
+        closeFile();
+        PageCacheMonitor.unregister(mbeanName);
     }
 
     /**
      * 根据 pgno 从数据库文件中读取页数据，并包裹成 Page
+     * 页数据直接读入从页帧池取出的页帧
      * @param key
      * @return
      * @throws Exception
@@ -74,67 +379,369 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
-
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        byte[] frame = framePool.acquire();
+        long start = System.nanoTime();
+        readPage(pgno, frame);
+        missLatency.recordSince(start);
+        pagesRead.increment();
+        return new PageImpl(pgno, frame, this);
     }
 
     /**
-     * 驱逐页 pg，如果是脏页，则写回文件系统
+     * 驱逐页 pg，如果是脏页，则写回文件系统，之后页帧归还页帧池
+     * 缓存会优先驱逐干净的页，只有找不到干净页时才会在这里写回，force 交给写页线程
      * @param pg
      */
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
+            writeLock.lock();
+            try {
+                writePage(pg.getPageNumber(), pg.getData());
+            } finally {
+                writeLock.unlock();
+            }
+            pagesWritten.increment();
             pg.setDirty(false);
+            unforced.set(true);
+            writer.wakeup();
+        } else if (isWriting(pg.getPageNumber())) {
+            // 等写页线程把暂存的内容写进文件，之后重新读入才能读到最新内容
+            writeLock.lock();
+            writeLock.unlock();
+        }
+        framePool.recycle(pg.getData());
+    }
+
+    @Override
+    protected boolean isClean(Page pg) {
+        return !pg.isDirty() && !isWriting(pg.getPageNumber());
+    }
+
+    private boolean isWriting(int pgno) {
+        dirtyLock.lock();
+        try {
+            return writingPages.get(pgno);
+        } finally {
+            dirtyLock.unlock();
         }
     }
 
     /**
-     * 将页 pg 写回文件系统
+     * 将页 pg 写回文件系统并落盘
+     * 写回时持有页的读锁，调用者不能持有该页的写锁
      * @param pg
      */
     private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
+        long start = System.nanoTime();
+        writeLock.lock();
+        pg.rLock();
+        try {
+            writePage(pg.getPageNumber(), pg.getData());
+        } finally {
+            pg.rUnLock();
+            writeLock.unlock();
+        }
+        pagesWritten.increment();
+        force();
+        flushLatency.recordSince(start);
+    }
+
+    private void force() {
+        long start = System.nanoTime();
+        forceFile();
+        forceLatency.recordSince(start);
+    }
+
+    /**
+     * 记录一个被释放的脏页，等待写页线程写回
+     * @param pgno
+     */
+    private void markDirty(int pgno) {
+        boolean wake;
+        dirtyLock.lock();
+        try {
+            if (!dirtyPages.get(pgno)) {
+                dirtyPages.set(pgno);
+                dirtyCount++;
+            }
+            wake = dirtyCount >= dirtyThreshold;
+        } finally {
+            dirtyLock.unlock();
+        }
+        if (wake) {
+            writer.wakeup();
+        }
+    }
+
+    /**
+     * 写页线程的一轮写回
+     * 按页号顺序取出记录的脏页，把没有被引用的页拷贝到暂存区并清除脏标记，
+     * 页号连续的页合并成一次写入，全部写完后 force 一次
+     * 仍被引用的页会在下一次释放时重新被记录
+     */
+    void writeDirtyPages() {
+        BitSet batch;
+        dirtyLock.lock();
+        try {
+            batch = dirtyPages;
+            dirtyPages = new BitSet();
+            dirtyCount = 0;
+        } finally {
+            dirtyLock.unlock();
+        }
+
+        int pgno = batch.nextSetBit(0);
+        while (pgno >= 0) {
+            int staged = 0;
+            writeLock.lock();
+            try {
+                for (; pgno >= 0 && staged < WRITE_BATCH; pgno = batch.nextSetBit(pgno + 1)) {
+                    int at = staged * pageSize;
+                    boolean[] copied = new boolean[1];
+                    applyIfIdle((long) pgno, pg -> {
+                        if (pg.isDirty()) {
+                            markWriting(pg.getPageNumber(), true);
+                            pg.setDirty(false);
+                            System.arraycopy(pg.getData(), 0, staging.array(), at, pageSize);
+                            copied[0] = true;
+                        }
+                    });
+                    if (copied[0]) {
+                        stagedPgnos[staged++] = pgno;
+                    }
+                }
+                if (staged > 0) {
+                    writeStaged(staged);
+                }
+            } finally {
+                for (int i = 0; i < staged; ++i) {
+                    markWriting(stagedPgnos[i], false);
+                }
+                writeLock.unlock();
+            }
+        }
+        if (unforced.getAndSet(false)) {
+            force();
+        }
+    }
+
+    private void markWriting(int pgno, boolean writing) {
+        dirtyLock.lock();
+        try {
+            writingPages.set(pgno, writing);
+        } finally {
+            dirtyLock.unlock();
+        }
+    }
+
+    /**
+     * 将暂存的 n 个页按连续区间写回，每个区间在暂存区中也是连续的，只需一次写
+     * @param n
+     */
+    private void writeStaged(int n) {
+        int start = 0;
+        for (int i = 1; i <= n; ++i) {
+            if (i == n || stagedPgnos[i] != stagedPgnos[i - 1] + 1) {
+                ByteBuffer run = staging.duplicate();
+                run.limit(i * pageSize);
+                run.position(start * pageSize);
+                writePages(stagedPgnos[start], run);
+                start = i;
+            }
+        }
+        pagesWritten.add(n);
+        unforced.set(true);
+    }
+
+    /**
+     * 将 run 中剩余的若干整页写到从 pgno 开始的连续页，不保证落盘
+     * 使用一次带位置的写，不修改 channel 的 position，多个线程的读写可以同时进行
+     * @param pgno
+     * @param run
+     */
+    protected void writePages(int pgno, ByteBuffer run) {
+        long pos = pageOffset(pgno) - run.position();
+        try {
+            while (run.hasRemaining()) {
+                fc.write(run, pos + run.position());
+                writeIos.increment();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将第 pgno 页读入 frame，读到文件末尾时剩余部分清零
+     * 使用带位置的读，不修改 channel 的 position，多个线程的读写可以同时进行
+     * @param pgno
+     * @param frame
+     */
+    protected void readPage(int pgno, byte[] frame) {
         long offset = pageOffset(pgno);
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        try {
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, offset + buf.position());
+                readIos.increment();
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (buf.hasRemaining()) {
+            Arrays.fill(frame, buf.position(), frame.length, (byte) 0);
+        }
+    }
 
-        fileLock.lock();
+    /**
+     * 将从 pgno 开始的连续 length 个页读入 bufs[offset, offset + length)，读到文件末尾时剩余部分清零
+     * 先用一次带位置的读把整段读入连续的缓冲区，再拷贝到各个页帧，不修改 channel 的 position
+     * @param pgno
+     * @param bufs
+     * @param offset
+     * @param length
+     */
+    protected void readPages(int pgno, ByteBuffer[] bufs, int offset, int length) {
+        int size = length * pageSize;
+        ByteBuffer run = size <= READ_AHEAD_PAGES * pageSize ? readRuns.poll() : null;
+        if (run == null) {
+            run = ByteBuffer.allocate(Math.max(size, READ_AHEAD_PAGES * pageSize));
+        }
+        run.clear();
+        run.limit(size);
+        long pos = pageOffset(pgno);
+        try {
+            while (run.hasRemaining()) {
+                int n = fc.read(run, pos + run.position());
+                readIos.increment();
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        byte[] raw = run.array();
+        Arrays.fill(raw, run.position(), size, (byte) 0);
+        for (int i = 0; i < length; ++i) {
+            System.arraycopy(raw, i * pageSize, bufs[offset + i].array(), 0, pageSize);
+        }
+        if (raw.length == READ_AHEAD_PAGES * pageSize) {
+            readRuns.offer(run);
+        }
+    }
+
+    /**
+     * 将 data 写到第 pgno 页，不保证落盘
+     * @param pgno
+     * @param data
+     */
+    protected void writePage(int pgno, byte[] data) {
+        long offset = pageOffset(pgno);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+                writeIos.increment();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将已写入的页强制落盘
+     */
+    protected void forceFile() {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
+    /**
+     * 将数据库文件截断为 size 字节
+     * @param size
+     */
+    protected void truncateFile(long size) {
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 把文件截断到真实的页数，去掉 extent 中没有用到的部分，落盘后关闭文件
+     * 异常关闭时文件会留有多余的全零页，由 Recover 按日志截断
+     */
+    protected void closeFile() {
+        truncateFile(pageOffset(getPageNumber() + 1));
+        try {
+            fc.force(true);
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * action 修改了页并置脏时，由写页线程写回
+     * 与 release 一样在 action 结束之后才记录脏页
+     * @param pgno
+     * @param action
+     * @return
+     */
+    @Override
+    public boolean applyIfIdle(int pgno, Consumer<Page> action) {
+        boolean[] dirty = new boolean[1];
+        boolean applied = applyIfIdle((long) pgno, pg -> {
+            action.accept(pg);
+            dirty[0] = pg.isDirty();
+        });
+        if (dirty[0]) {
+            markDirty(pgno);
+        }
+        return applied;
+    }
+
+    /**
+     * 先释放引用再记录脏页，否则写页线程可能在页仍被引用时取走记录，跳过该页后脏页就不会再被写回
+     * @param pg
+     */
     @Override
     public void release(Page pg) {
-        release((long)pg.getPageNumber());
+        int pgno = pg.getPageNumber();
+        boolean dirty = pg.isDirty();
+        release((long) pgno);
+        if (dirty) {
+            markDirty(pgno);
+        }
     }
 
     @Override
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        extentLock.lock();
         try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
+            truncateFile(pageOffset(maxPgno + 1));
+            allocLock.lock();
+            try {
+                pageNumbers.set(maxPgno);
+                unwrittenPages.clear();
+                writtenPages = maxPgno;
+            } finally {
+                allocLock.unlock();
+            }
+            allocatedPages = maxPgno;
+        } finally {
+            extentLock.unlock();
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
@@ -142,12 +749,50 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
+    @Override
+    public int getWrittenPageNumber() {
+        return writtenPages;
+    }
+
     @Override
     public void flushPage(Page pg) {
         flush(pg);
     }
 
-    private static int pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+    @Override
+    public PageCacheStats stats() {
+        PageCacheStats st = new PageCacheStats();
+        st.hits = hitCount();
+        st.misses = missCount();
+        st.evictions = evictionCount();
+        st.cacheFullErrors = cacheFullCount();
+        st.residentPages = residentCount();
+        st.pinnedPages = pinnedCount();
+        dirtyLock.lock();
+        try {
+            st.dirtyPages = dirtyCount;
+        } finally {
+            dirtyLock.unlock();
+        }
+        st.capacity = capacity;
+        st.pageSize = pageSize;
+        st.pagesRead = pagesRead.sum();
+        st.pagesWritten = pagesWritten.sum();
+        st.readIos = readIos.sum();
+        st.writeIos = writeIos.sum();
+        st.getPageLatency = getPageLatency.snapshot();
+        st.missLatency = missLatency.snapshot();
+        st.flushLatency = flushLatency.snapshot();
+        st.forceLatency = forceLatency.snapshot();
+        return st;
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    long pageOffset(int pgno) {
+        return (long) (pgno - 1) * pageSize;
     }
 }
@@ -0,0 +1,28 @@
+package com.iamxgw.mydb.backend.dm.pageCache;
+
+import com.iamxgw.mydb.backend.common.LatencyHistogram;
+
+/**
+ * 通过 JMX 发布的页缓存统计，注册名为 com.iamxgw.mydb:type=PageCache,name=<数据库文件路径>
+ * 延迟以 CompositeData 的形式发布，包含 count、meanNanos、p50Nanos、p99Nanos、maxNanos
+ */
+public interface PageCacheMXBean {
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+    long getEvictions();
+    long getCacheFullErrors();
+    int getResidentPages();
+    long getPinnedPages();
+    int getDirtyPages();
+    int getCapacity();
+    int getPageSize();
+    long getPagesRead();
+    long getPagesWritten();
+    long getReadIos();
+    long getWriteIos();
+    LatencyHistogram.Snapshot getGetPageLatency();
+    LatencyHistogram.Snapshot getMissLatency();
+    LatencyHistogram.Snapshot getFlushLatency();
+    LatencyHistogram.Snapshot getForceLatency();
+}
@@ -0,0 +1,140 @@
+package com.iamxgw.mydb.backend.dm.pageCache;
+
+import com.iamxgw.mydb.backend.common.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 把页缓存的统计发布到 JMX，每次读取属性时取一次新的快照
+ */
+class PageCacheMonitor implements PageCacheMXBean {
+    private static final String DOMAIN = "com.iamxgw.mydb";
+
+    private PageCache pc;
+
+    PageCacheMonitor(PageCache pc) {
+        this.pc = pc;
+    }
+
+    /**
+     * 以 name 注册 pc 的 MXBean
+     * 注册失败（例如同一个文件被打开了两次）不影响页缓存本身，返回 null
+     * @param pc
+     * @param name
+     * @return 注册的名字
+     */
+    static ObjectName register(PageCache pc, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName(DOMAIN + ":type=PageCache,name=" + ObjectName.quote(name));
+            server.registerMBean(new PageCacheMonitor(pc), on);
+            return on;
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName on) {
+        if (on == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException e) {
+            // 已经被注销
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return pc.stats().getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        return pc.stats().getMisses();
+    }
+
+    @Override
+    public double getHitRatio() {
+        return pc.stats().getHitRatio();
+    }
+
+    @Override
+    public long getEvictions() {
+        return pc.stats().getEvictions();
+    }
+
+    @Override
+    public long getCacheFullErrors() {
+        return pc.stats().getCacheFullErrors();
+    }
+
+    @Override
+    public int getResidentPages() {
+        return pc.stats().getResidentPages();
+    }
+
+    @Override
+    public long getPinnedPages() {
+        return pc.stats().getPinnedPages();
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return pc.stats().getDirtyPages();
+    }
+
+    @Override
+    public int getCapacity() {
+        return pc.stats().getCapacity();
+    }
+
+    @Override
+    public int getPageSize() {
+        return pc.stats().getPageSize();
+    }
+
+    @Override
+    public long getPagesRead() {
+        return pc.stats().getPagesRead();
+    }
+
+    @Override
+    public long getPagesWritten() {
+        return pc.stats().getPagesWritten();
+    }
+
+    @Override
+    public long getReadIos() {
+        return pc.stats().getReadIos();
+    }
+
+    @Override
+    public long getWriteIos() {
+        return pc.stats().getWriteIos();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getGetPageLatency() {
+        return pc.stats().getGetPageLatency();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getMissLatency() {
+        return pc.stats().getMissLatency();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getFlushLatency() {
+        return pc.stats().getFlushLatency();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getForceLatency() {
+        return pc.stats().getForceLatency();
+    }
+}
@@ -0,0 +1,114 @@
+package com.iamxgw.mydb.backend.dm.pageCache;
+
+import com.iamxgw.mydb.backend.common.LatencyHistogram;
+
+/**
+ * 页缓存统计信息的快照，由 PageCache.stats() 生成
+ * 计数从页缓存创建或打开时开始累计，用于观察命中率、驱逐和 I/O 情况，以确定 memory 的大小
+ */
+public class PageCacheStats {
+    long hits;
+    long misses;
+    long evictions;
+    long cacheFullErrors;
+    int residentPages;
+    long pinnedPages;
+    int dirtyPages;
+    int capacity;
+    int pageSize;
+    long pagesRead;
+    long pagesWritten;
+    long readIos;
+    long writeIos;
+    LatencyHistogram.Snapshot getPageLatency;
+    LatencyHistogram.Snapshot missLatency;
+    LatencyHistogram.Snapshot flushLatency;
+    LatencyHistogram.Snapshot forceLatency;
+
+    PageCacheStats() {
+        LatencyHistogram.Snapshot empty = new LatencyHistogram().snapshot();
+        getPageLatency = empty;
+        missLatency = empty;
+        flushLatency = empty;
+        forceLatency = empty;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    // 缓存已满且等待超时，抛出 CacheFullException 的次数
+    public long getCacheFullErrors() {
+        return cacheFullErrors;
+    }
+
+    public int getResidentPages() {
+        return residentPages;
+    }
+
+    public long getPinnedPages() {
+        return pinnedPages;
+    }
+
+    // 已释放、等待写页线程写回的脏页数
+    public int getDirtyPages() {
+        return dirtyPages;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    // 读文件发起的 I/O 次数，连续的多页预读只算一次
+    public long getReadIos() {
+        return readIos;
+    }
+
+    // 写文件发起的 I/O 次数，写页线程每段连续的脏页只算一次
+    public long getWriteIos() {
+        return writeIos;
+    }
+
+    // getPage 的耗时，包括命中和缺页
+    public LatencyHistogram.Snapshot getGetPageLatency() {
+        return getPageLatency;
+    }
+
+    // 缺页时从文件读入一页的耗时
+    public LatencyHistogram.Snapshot getMissLatency() {
+        return missLatency;
+    }
+
+    public LatencyHistogram.Snapshot getFlushLatency() {
+        return flushLatency;
+    }
+
+    public LatencyHistogram.Snapshot getForceLatency() {
+        return forceLatency;
+    }
+}
@@ -0,0 +1,51 @@
+package com.iamxgw.mydb.backend.dm.pageCache;
+
+/**
+ * 页帧池
+ * 页缓存的容量固定，所以在创建时一次性分配好所有页帧，页被驱逐后其页帧归还到池中，
+ * 供下一次缺页直接读入，运行期间不再为页数据分配内存
+ */
+public class PageFramePool {
+    private int frameSize;
+    // 空闲页帧栈
+    private byte[][] free;
+    private int top;
+
+    public PageFramePool(int frames, int frameSize) {
+        this.frameSize = frameSize;
+        this.free = new byte[frames][];
+        for (int i = 0; i < frames; ++i) {
+            free[i] = new byte[frameSize];
+        }
+        this.top = frames;
+    }
+
+    /**
+     * 取出一个空闲页帧，页帧中可能残留上一个页的数据
+     * 正常情况下缓存中的页不会超过页帧数，池空时退化为新分配
+     * @return
+     */
+    public synchronized byte[] acquire() {
+        if (top == 0) {
+            return new byte[frameSize];
+        }
+        byte[] frame = free[--top];
+        free[top] = null;
+        return frame;
+    }
+
+    /**
+     * 归还页帧，超出容量的页帧直接丢弃
+     * @param frame
+     */
+    public synchronized void recycle(byte[] frame) {
+        if (frame.length != frameSize || top == free.length) {
+            return;
+        }
+        free[top++] = frame;
+    }
+
+    public synchronized int available() {
+        return top;
+    }
+}
@@ -0,0 +1,83 @@
+package com.iamxgw.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台写页线程
+ * 每隔 INTERVAL_MILLIS，或者在脏页积累到一定数量时被唤醒，
+ * 由 PageCacheImpl 按页号顺序把空闲的脏页批量写回，每批只 force 一次
+ */
+class PageWriter implements Runnable {
+    private static final long INTERVAL_MILLIS = 100;
+
+    private PageCacheImpl pc;
+    private Thread thread;
+    private Lock lock;
+    private Condition wakeup;
+    private boolean requested;
+    private volatile boolean closed;
+
+    PageWriter(PageCacheImpl pc) {
+        this.pc = pc;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+    }
+
+    void start() {
+        thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 请求尽快进行一轮写回
+     */
+    void wakeup() {
+        lock.lock();
+        try {
+            requested = true;
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 停止写页线程，并等待正在进行的一轮写回结束
+     */
+    void shutdown() {
+        closed = true;
+        if (thread == null) {
+            return;
+        }
+        wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (!requested) {
+                    wakeup.await(INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                requested = false;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (!closed) {
+                pc.writeDirtyPages();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.iamxgw.mydb.backend.dm.pageIndex;
+
+import com.iamxgw.mydb.backend.utils.Panic;
+import com.iamxgw.mydb.backend.utils.Parser;
+import com.iamxgw.mydb.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 持久化的空闲空间表，保存 PageIndex 的内容，打开数据库时不用再读遍所有页
+ * 只在正常关闭时写入，写入时记录 PageOne 当前的 ValidCheck 和页数：
+ * 打开时 ValidCheck 和页数都对得上才加载；异常关闭、或者数据库在上次关闭后又被打开过，
+ * 都会因为对不上而重新扫描所有页
+ *
+ * 文件格式：
+ * [ValidCheck] [PageNumber] [FreeSpace(2)] [FreeSpace(3)] ... [FreeSpace(PageNumber)]
+ * ValidCheck 8 字节，PageNumber 4 字节，每页的空闲空间 2 字节，按无符号数解析，第一页不记录
+ * 不在 PageIndex 中的页（例如溢出页）记为 NOT_INDEXED，加载时跳过
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    private static final int LEN_VC = 8;
+    private static final int OF_PAGE_NUMBER = LEN_VC;
+    private static final int OF_FREE_SPACE = OF_PAGE_NUMBER + 4;
+    // 页的空闲空间不会达到该值
+    private static final int NOT_INDEXED = 0xFFFF;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    FreeSpaceMap(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+    }
+
+    public static FreeSpaceMap create(String path) {
+        File f = new File(path + FSM_SUFFIX);
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return open(f);
+    }
+
+    /**
+     * 打开 path 对应的空闲空间表，早期创建的数据库没有该文件时新建一个空表
+     * @param path
+     * @return
+     */
+    public static FreeSpaceMap open(String path) {
+        File f = new File(path + FSM_SUFFIX);
+        try {
+            f.createNewFile();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return open(f);
+    }
+
+    private static FreeSpaceMap open(File f) {
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        FileChannel fc = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return new FreeSpaceMap(raf, fc);
+    }
+
+    /**
+     * 将 pIndex 中第 2 到 pageNumber 页的空闲空间写入文件并落盘，不在 pIndex 中的页记为 NOT_INDEXED
+     * 需要在 PageOne 的关闭标记落盘之前调用
+     * @param vc PageOne 当前的 ValidCheck
+     * @param pageNumber
+     * @param pIndex
+     */
+    public void save(byte[] vc, int pageNumber, PageIndex pIndex) {
+        int[] freeSpace = new int[pageNumber + 1];
+        Arrays.fill(freeSpace, NOT_INDEXED);
+        for (PageInfo pi : pIndex.snapshot()) {
+            if (pi.pgno <= pageNumber) {
+                freeSpace[pi.pgno] = pi.freeSpace;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(lengthOf(pageNumber));
+        buf.put(vc, 0, LEN_VC);
+        buf.putInt(pageNumber);
+        for (int pgno = 2; pgno <= pageNumber; ++pgno) {
+            buf.putShort((short) freeSpace[pgno]);
+        }
+        buf.flip();
+        try {
+            file.setLength(0);
+            while (buf.hasRemaining()) {
+                fc.write(buf, buf.position());
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * ValidCheck 和页数都与文件中记录的一致时，把记录的空闲空间加入 pIndex
+     * @param vc PageOne 当前的 ValidCheck
+     * @param pageNumber
+     * @param pIndex
+     * @return 是否加载成功，失败时 pIndex 不变
+     */
+    public boolean load(byte[] vc, int pageNumber, PageIndex pIndex) {
+        ByteBuffer buf = null;
+        try {
+            if (file.length() != lengthOf(pageNumber)) {
+                return false;
+            }
+            buf = ByteBuffer.allocate(lengthOf(pageNumber));
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, buf.position()) < 0) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        byte[] raw = buf.array();
+        if (!Arrays.equals(Arrays.copyOfRange(raw, 0, LEN_VC), Arrays.copyOf(vc, LEN_VC))
+                || Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_NUMBER, OF_FREE_SPACE)) != pageNumber) {
+            return false;
+        }
+        buf.position(OF_FREE_SPACE);
+        for (int pgno = 2; pgno <= pageNumber; ++pgno) {
+            int freeSpace = buf.getShort() & 0xFFFF;
+            if (freeSpace != NOT_INDEXED) {
+                pIndex.add(pgno, freeSpace);
+            }
+        }
+        return true;
+    }
+
+    private static int lengthOf(int pageNumber) {
+        return OF_FREE_SPACE + 2 * Math.max(pageNumber - 1, 0);
+    }
+
+    public void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -1,73 +1,208 @@
 package com.iamxgw.mydb.backend.dm.pageIndex;
 
-import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
-
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 页面索引，缓存了每一页的空闲空间。用于在上层模块进行插入操作时，
  * 能够快速找到一个合适空间的页面，而无需从磁盘或者缓存中检查每一个页面的信息。
+ *
+ * 每个区块数对应一个无锁队列，另用一个位图记录哪些队列可能非空，
+ * select 通过位图直接跳到第一个可能非空的队列，add 和 select 都不需要全局锁
+ *
+ * 另用一张表记录每一页当前有效的 PageInfo，一页在索引中最多只有一个有效的 PageInfo。
+ * 页被 select 或 remove 取走后即归调用者独占，直到调用者把它 add 回来；
+ * 被替换或取走的 PageInfo 会从队列中摘除，与 select 并发时漏掉的旧 PageInfo 会在 select 时被丢弃，
+ * 队列中的结点数不超过索引中的页数加上正在进行的操作数
+ * 空闲区块为 0 的页不会被 select 选中，只记在表中，不入队
  */
 public class PageIndex {
     // 一页划分为 40 个区块
     private static final int INTERVALS_NO = 40;
 
-    // 每个区块的大小
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
-    private Lock lock;
+    // 每个区块的大小，由页大小决定
+    private final int threshold;
     // 记录空闲区块恰有 x 个的页面都有谁
-    private List<PageInfo>[] lists;
+    private ConcurrentLinkedDeque<PageInfo>[] lists;
+    // 第 x 位为 1 表示 lists[x] 可能非空；为 0 时 lists[x] 一定为空
+    private AtomicLong nonEmpty;
+    // 每一页当前有效的 PageInfo，不在表中的页不在索引中
+    private ConcurrentHashMap<Integer, PageInfo> current;
 
-    @SuppressWarnings("unchecked")
-    public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedDeque<PageInfo>[] deques = (ConcurrentLinkedDeque<PageInfo>[]) new ConcurrentLinkedDeque<?>[INTERVALS_NO + 1];
+        lists = deques;
         for (int i = 0; i < INTERVALS_NO + 1; ++i) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedDeque<>();
         }
+        nonEmpty = new AtomicLong(0);
+        current = new ConcurrentHashMap<>();
     }
 
     /**
      * 将空闲大小为 freeSpace 大小的页，放入到 PageIndex 中
+     * 先入队再置位，select 看到位为 1 时一定能看到入队的页
+     * 页已在索引中时，以新的空闲空间为准
      * @param pgno
      * @param freeSpace
      */
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        int number = bucketOf(freeSpace);
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        PageInfo old = current.put(pgno, pi);
+        if (old != null) {
+            unlink(old);
+        }
+        if (number == 0) {
+            return;
         }
+        lists[number].offerLast(pi);
+        setBit(number);
+    }
+
+    /**
+     * 将页 pgno 从索引中取出，之后由调用者独占，用完后需要重新 add
+     * @param pgno
+     * @return 页不在索引中（例如正在被插入）时返回 null
+     */
+    public PageInfo remove(int pgno) {
+        PageInfo pi = current.remove(pgno);
+        if (pi != null) {
+            unlink(pi);
+        }
+        return pi;
+    }
+
+    /**
+     * 页 pgno 是否在索引中，没有被取走
+     * @param pgno
+     * @return
+     */
+    public boolean contains(int pgno) {
+        return current.containsKey(pgno);
     }
 
     /**
      * 选择一个恰有 number 个空前区块的页面，并返回。
      * 如果当前不包含这样的页，那就将 number + 1，再去尝试
+     * 最后一个区块中的页空闲空间不一定都够 spaceSize，需要逐个检查
      * 注意：同一个页面，不允许并发的写。当上层模块使用完该页后，会重新插入到 PageIndex 中
      * @param spaceSize
      * @return
      */
     public PageInfo select(int spaceSize) {
-        lock.lock();
-        try {
-            // spaceSize 需要的区块的个数，向上取整
-            int number = spaceSize / THRESHOLD;
-            if (number < INTERVALS_NO) number++;
-            while (number <= INTERVALS_NO) {
-                if (lists[number].size() == 0) {
-                    number++;
-                    continue;
+        // spaceSize 需要的区块的个数，向上取整
+        int number = spaceSize / threshold;
+        if (number < INTERVALS_NO) number++;
+        while (number <= INTERVALS_NO) {
+            long candidates = nonEmpty.get() >>> number;
+            if (candidates == 0) {
+                return null;
+            }
+            number += Long.numberOfTrailingZeros(candidates);
+            if (number == INTERVALS_NO) {
+                return selectLast(spaceSize);
+            }
+            PageInfo pi = lists[number].pollFirst();
+            if (pi != null) {
+                // 只有当前有效的 PageInfo 才能取走该页，旧的直接丢弃
+                if (current.remove(pi.pgno, pi)) {
+                    return pi;
                 }
-                return lists[number].remove(0);
+                continue;
+            }
+            // 队列已空，清位后再检查一次，避免清掉并发 add 刚置上的位
+            clearBit(number);
+            if (!lists[number].isEmpty()) {
+                setBit(number);
+                continue;
+            }
+            number++;
+        }
+        return null;
+    }
+
+    /**
+     * 在最后一个区块中找第一个空闲空间不小于 spaceSize 的页，顺便丢弃旧的 PageInfo
+     * @param spaceSize
+     * @return
+     */
+    private PageInfo selectLast(int spaceSize) {
+        ConcurrentLinkedDeque<PageInfo> list = lists[INTERVALS_NO];
+        Iterator<PageInfo> it = list.iterator();
+        while (it.hasNext()) {
+            PageInfo pi = it.next();
+            if (current.get(pi.pgno) != pi) {
+                it.remove();
+                continue;
+            }
+            if (pi.freeSpace >= spaceSize && current.remove(pi.pgno, pi)) {
+                it.remove();
+                return pi;
             }
-            return null;
-        } finally {
-            lock.unlock();
+        }
+        clearBit(INTERVALS_NO);
+        if (!list.isEmpty()) {
+            setBit(INTERVALS_NO);
+        }
+        return null;
+    }
+
+    /**
+     * 返回各队列中的 PageInfo 总数，包括还没有被丢弃的旧 PageInfo
+     * @return
+     */
+    public int queuedSize() {
+        int size = 0;
+        for (ConcurrentLinkedDeque<PageInfo> list : lists) {
+            size += list.size();
+        }
+        return size;
+    }
+
+    /**
+     * 返回当前索引中所有页的空闲空间，不从索引中取出
+     * 与 add/select 并发时结果不保证完整
+     * @return
+     */
+    public List<PageInfo> snapshot() {
+        return new ArrayList<>(current.values());
+    }
+
+    private int bucketOf(int freeSpace) {
+        return Math.min(freeSpace / threshold, INTERVALS_NO);
+    }
+
+    /**
+     * 把已失效的 pi 从队列中摘除，已被 select 取出时什么也不做
+     * @param pi
+     */
+    private void unlink(PageInfo pi) {
+        int number = bucketOf(pi.freeSpace);
+        if (number > 0) {
+            lists[number].removeFirstOccurrence(pi);
+        }
+    }
+
+    private void setBit(int number) {
+        long bit = 1L << number;
+        long bits = nonEmpty.get();
+        while ((bits & bit) == 0 && !nonEmpty.compareAndSet(bits, bits | bit)) {
+            bits = nonEmpty.get();
+        }
+    }
+
+    private void clearBit(int number) {
+        long bit = 1L << number;
+        long bits = nonEmpty.get();
+        while ((bits & bit) != 0 && !nonEmpty.compareAndSet(bits, bits & ~bit)) {
+            bits = nonEmpty.get();
         }
     }
 }
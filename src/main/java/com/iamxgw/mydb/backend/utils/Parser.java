@@ -16,6 +16,16 @@ public class Parser {
         return buffer.getShort();
     }
 
+    /**
+     * 直接从 buf[offset] 开始解析，不拷贝也不分配对象，字节序与 parseShort(byte[]) 相同
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public static short parseShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF));
+    }
+
     public static byte[] int2Byte(int value) {
         return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
     }
@@ -25,6 +35,11 @@ public class Parser {
         return buffer.getInt();
     }
 
+    public static int parseInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16)
+                | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+    }
+
     public static long parseLong(byte[] buf) {
         ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
         return buffer.getLong();
@@ -1,9 +1,16 @@
 package com.iamxgw.mydb.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    /**
+     * uid 高 32 位为页号，低 16 位为数据在页内的槽号，槽号按无符号数处理
+     * 数据在页内移动时槽号不变，所以 uid 不受页内整理的影响
+     * @param pgno
+     * @param slot
+     * @return
+     */
+    public static long addressToUid(int pgno, int slot) {
         long u0 = (long) pgno;
-        long u1 = (long) offset;
+        long u1 = (long) (slot & 0xFFFF);
         return u0 << 32 | u1;
     }
 }
@@ -12,6 +12,8 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception BadDBFileException = new RuntimeException("Bad db file!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
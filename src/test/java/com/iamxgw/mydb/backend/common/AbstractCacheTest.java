@@ -0,0 +1,211 @@
+package com.iamxgw.mydb.backend.common;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AbstractCacheTest {
+
+    static class CountingCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger(0);
+        Set<Long> released = new HashSet<>();
+        long loadDelay = 0;
+
+        CountingCache(int maxResource, ReplacementPolicy policy) {
+            super(maxResource, policy);
+        }
+
+        Long fetch(long key) throws Exception {
+            return get(key);
+        }
+
+        Long scan(long key) throws Exception {
+            return get(key, true);
+        }
+
+        void drop(long key) {
+            release(key);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            if (loadDelay > 0) {
+                Thread.sleep(loadDelay);
+            }
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            synchronized (released) {
+                released.add(obj);
+            }
+        }
+    }
+
+    @Test
+    public void testUnpinnedStayResident() throws Exception {
+        CountingCache cache = new CountingCache(4, ReplacementPolicy.clock());
+        for (int i = 0; i < 10; ++i) {
+            cache.fetch(1);
+            cache.drop(1);
+        }
+        assert cache.loads.get() == 1;
+        assert cache.released.isEmpty();
+    }
+
+    @Test
+    public void testLRUEvictsLeastRecentlyUsed() throws Exception {
+        CountingCache cache = new CountingCache(3, ReplacementPolicy.lru());
+        for (long k = 1; k <= 3; ++k) {
+            cache.fetch(k);
+            cache.drop(k);
+        }
+        cache.fetch(1);
+        cache.drop(1);
+        cache.fetch(4);
+        cache.drop(4);
+        assert cache.released.contains(2L);
+        assert cache.released.size() == 1;
+    }
+
+    @Test
+    public void testClockSkipsPinned() throws Exception {
+        CountingCache cache = new CountingCache(3, ReplacementPolicy.clock());
+        for (long k = 1; k <= 3; ++k) {
+            cache.fetch(k);
+        }
+        cache.drop(3);
+        cache.fetch(4);
+        assert cache.released.contains(3L);
+        assert cache.released.size() == 1;
+    }
+
+    @Test
+    public void testTwoQueueResistsScan() throws Exception {
+        CountingCache cache = new CountingCache(8, ReplacementPolicy.twoQueue());
+        // 1-4 被挤出试用区后再次访问，进入主区
+        for (long k : new long[]{1, 2, 3, 4, 100, 101, 102, 103, 104, 105, 106, 107, 1, 2, 3, 4}) {
+            cache.fetch(k);
+            cache.drop(k);
+        }
+        int loads = cache.loads.get();
+        for (long k = 1000; k < 1100; ++k) {
+            cache.scan(k);
+            cache.drop(k);
+        }
+        assert cache.loads.get() == loads + 100;
+        for (long k = 1; k <= 4; ++k) {
+            cache.fetch(k);
+            cache.drop(k);
+        }
+        assert cache.loads.get() == loads + 100;
+    }
+
+    @Test(timeout = 5000)
+    public void testTwoQueueAccessTakesNoLock() throws Exception {
+        TwoQueuePolicy policy = new TwoQueuePolicy();
+        ReplacementPolicy.Node[] nodes = new ReplacementPolicy.Node[4];
+        // 先被驱逐进 ghost 再加载，进入主区
+        for (int k = 0; k < nodes.length; ++k) {
+            policy.remove(policy.insert(k));
+        }
+        for (int k = 0; k < nodes.length; ++k) {
+            nodes[k] = policy.insert(k);
+        }
+
+        // 其他线程持有策略的锁时，命中不需要等待
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch unlock = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (policy) {
+                locked.countDown();
+                try {
+                    unlock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+        policy.access(nodes[0]);
+        unlock.countDown();
+        holder.join();
+
+        // 被命中过的最旧资源获得第二次机会
+        assert policy.victim(k -> true) == 1;
+        policy.remove(nodes[1]);
+        assert policy.victim(k -> true) == 2;
+    }
+
+    /**
+     * 工作线程中的失败（包括断言失败）记下来，由测试线程重新抛出
+     * @param failure
+     * @throws Exception
+     */
+    private static void rethrow(AtomicReference<Throwable> failure) throws Exception {
+        Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testFullCacheWaitsForRelease() throws Exception {
+        CountingCache cache = new CountingCache(2, ReplacementPolicy.lru());
+        cache.fetch(1);
+        cache.fetch(2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch loaded = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                cache.fetch(3);
+            } catch (Throwable e) {
+                failure.set(e);
+            } finally {
+                loaded.countDown();
+            }
+        });
+        t.start();
+        Thread.sleep(50);
+        assert loaded.getCount() == 1;
+        cache.drop(1);
+        loaded.await();
+        t.join();
+        rethrow(failure);
+        assert cache.released.contains(1L);
+    }
+
+    @Test(timeout = 5000)
+    public void testConcurrentGetLoadsOnce() throws Exception {
+        CountingCache cache = new CountingCache(8, ReplacementPolicy.clock());
+        cache.loadDelay = 50;
+        int noWorkers = 16;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch cdl = new CountDownLatch(noWorkers);
+        for (int i = 0; i < noWorkers; ++i) {
+            new Thread(() -> {
+                try {
+                    assert cache.fetch(7) == 7L;
+                    cache.drop(7);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        rethrow(failure);
+        assert cache.loads.get() == 1;
+    }
+}
@@ -0,0 +1,41 @@
+package com.iamxgw.mydb.backend.common;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class LongHashMapTest {
+    static Random random = new SecureRandom();
+
+    @Test
+    public void testAgainstHashMap() {
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> ref = new HashMap<>();
+        for (int i = 0; i < 200000; ++i) {
+            // key 范围较小，保证大量冲突和删除
+            long key = random.nextInt(2000) - 1000;
+            int op = random.nextInt(3);
+            if (op == 0) {
+                assert equal(map.put(key, (long) i), ref.put(key, (long) i));
+            } else if (op == 1) {
+                assert equal(map.remove(key), ref.remove(key));
+            } else {
+                assert equal(map.get(key), ref.get(key));
+            }
+            assert map.size() == ref.size();
+        }
+        int[] visited = new int[1];
+        map.forEach((key, value) -> {
+            assert value.equals(ref.get(key));
+            visited[0]++;
+        });
+        assert visited[0] == ref.size();
+    }
+
+    private static boolean equal(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
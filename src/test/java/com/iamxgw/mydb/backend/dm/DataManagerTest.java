@@ -0,0 +1,493 @@
+package com.iamxgw.mydb.backend.dm;
+
+import com.iamxgw.mydb.backend.dm.dataItem.DataItem;
+import com.iamxgw.mydb.backend.dm.logger.Logger;
+import com.iamxgw.mydb.backend.dm.page.PageX;
+import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.tm.TransactionManager;
+import com.iamxgw.mydb.backend.utils.RandomUtil;
+import com.iamxgw.mydb.common.Error;
+import com.iamxgw.mydb.common.SubArray;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DataManagerTest {
+    static Random random = new SecureRandom();
+
+    private static void deleteFiles(String path) {
+        for (String suffix : new String[]{".db", ".log", ".xid", ".fsm"}) {
+            assert new File(path + suffix).delete();
+        }
+    }
+
+    private static boolean dataEquals(DataManager dm, long uid, byte[] expected) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            if (di.isOverflow()) {
+                return Arrays.equals(dm.readStream(uid).readAllBytes(), expected);
+            }
+            SubArray data = di.data();
+            return Arrays.equals(Arrays.copyOfRange(data.raw, data.start, data.end), expected);
+        } finally {
+            di.release();
+        }
+    }
+
+    @Test
+    public void testInsertBatch() throws Exception {
+        String path = "src/testFiles/dm_batch_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 20, tm);
+
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            data.add(RandomUtil.randomBytes(1 + random.nextInt(500)));
+        }
+        // 大数据和普通数据混在一起
+        data.add(1000, RandomUtil.randomBytes(3 * 8192));
+        long xid = tm.begin();
+        long[] uids = dm.insertBatch(xid, data);
+        tm.commit(xid);
+
+        assert uids.length == data.size();
+        for (int i = 0; i < uids.length; ++i) {
+            assert dataEquals(dm, uids[i], data.get(i));
+        }
+        dm.close();
+
+        // 每页一条日志，远少于数据的条数
+        Logger lg = Logger.open(path);
+        lg.rewind();
+        int logs = 0;
+        while (lg.next() != null) {
+            logs++;
+        }
+        lg.close();
+        assert logs < 200;
+
+        dm = DataManager.open(path, 1 << 20, tm);
+        for (int i = 0; i < uids.length; ++i) {
+            assert dataEquals(dm, uids[i], data.get(i));
+        }
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test(timeout = 10000)
+    public void testInsertBatchMaxRaw() throws Exception {
+        String path = "src/testFiles/dm_batch_max_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        // 部分写入的页和空页落在 PageIndex 的同一个区块
+        long xid = tm.begin();
+        byte[] small = RandomUtil.randomBytes(8);
+        long smallUid = dm.insert(xid, small);
+        dm.returnInsertPages(0);
+
+        int maxData = PageX.maxFreeSpace(PageCache.PAGE_SIZE) - DataItem.rawSize(0);
+        List<byte[]> data = new ArrayList<>();
+        data.add(RandomUtil.randomBytes(maxData));
+        data.add(RandomUtil.randomBytes(maxData));
+        long[] uids = dm.insertBatch(xid, data);
+        long uid = dm.insert(xid, RandomUtil.randomBytes(maxData));
+        tm.commit(xid);
+
+        assert dataEquals(dm, smallUid, small);
+        for (int i = 0; i < uids.length; ++i) {
+            assert dataEquals(dm, uids[i], data.get(i));
+        }
+        DataItem di = dm.read(uid);
+        assert di.data().end - di.data().start == maxData;
+        di.release();
+
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test(timeout = 10000)
+    public void testInsertChecksFreeSpace() throws Exception {
+        String path = "src/testFiles/dm_insert_free_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        byte[] small = RandomUtil.randomBytes(8);
+        long smallUid = dm.insert(xid, small);
+        dm.returnInsertPages(0);
+        // PageIndex 中记录的空闲空间比页的实际空闲空间大
+        int pgno = (int) (smallUid >>> 32);
+        int maxFreeSpace = PageX.maxFreeSpace(PageCache.PAGE_SIZE);
+        dm.pIndex.add(pgno, maxFreeSpace);
+
+        byte[] big = RandomUtil.randomBytes(maxFreeSpace - DataItem.rawSize(0));
+        long bigUid = dm.insert(xid, big);
+        tm.commit(xid);
+        assert (int) (bigUid >>> 32) != pgno;
+        assert dataEquals(dm, smallUid, small);
+        assert dataEquals(dm, bigUid, big);
+
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        String path = "src/testFiles/dm_concurrent_insert_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        int threads = 8, perThread = 500;
+        long[][] uids = new long[threads][perThread];
+        byte[][][] data = new byte[threads][perThread][];
+        AtomicBoolean failed = new AtomicBoolean(false);
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for (int t = 0; t < threads; ++t) {
+            int id = t;
+            new Thread(() -> {
+                try {
+                    long xid = tm.begin();
+                    for (int i = 0; i < perThread; ++i) {
+                        data[id][i] = RandomUtil.randomBytes(1 + random.nextInt(300));
+                        uids[id][i] = dm.insert(xid, data[id][i]);
+                    }
+                    tm.commit(xid);
+                } catch (Exception e) {
+                    failed.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert !failed.get();
+
+        for (int t = 0; t < threads; ++t) {
+            for (int i = 0; i < perThread; ++i) {
+                assert dataEquals(dm, uids[t][i], data[t][i]);
+            }
+        }
+        // 插入页放回后，除 PageOne 外每一页都在 PageIndex 中
+        dm.returnInsertPages(0);
+        assert dm.pIndex.snapshot().size() == dm.pc.getPageNumber() - 1;
+
+        dm.close();
+        DataManager reopened = DataManager.open(path, 1 << 20, tm);
+        for (int t = 0; t < threads; ++t) {
+            for (int i = 0; i < perThread; ++i) {
+                assert dataEquals(reopened, uids[t][i], data[t][i]);
+            }
+        }
+        reopened.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testLazyBeforeImage() throws Exception {
+        String path = "src/testFiles/dm_before_image_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 20, tm);
+
+        byte[] data = RandomUtil.randomBytes(100);
+        long xid = tm.begin();
+        long uid = dm.insert(xid, data);
+
+        // 只读时不分配修改前内容，data() 返回同一个视图
+        DataItem di = dm.read(uid);
+        assert di.data() == di.data();
+        assert di.getOldRaw() == null;
+
+        di.before();
+        SubArray raw = di.data();
+        raw.raw[raw.start] = (byte) (data[0] + 1);
+        di.after(xid);
+        byte[] oldRaw = di.getOldRaw();
+        assert oldRaw.length == DataItem.rawSize(data.length);
+        assert Arrays.equals(Arrays.copyOfRange(oldRaw, oldRaw.length - data.length, oldRaw.length), data);
+        di.release();
+        tm.commit(xid);
+
+        data[0]++;
+        assert dataEquals(dm, uid, data);
+        dm.close();
+        dm = DataManager.open(path, 1 << 20, tm);
+        assert dataEquals(dm, uid, data);
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testItemCacheDoesNotPinPages() throws Exception {
+        String path = "src/testFiles/dm_item_cache_test";
+        TransactionManager tm = TransactionManager.create(path);
+        // DataItem 缓存只能放下 64 项
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, PageCache.PAGE_SIZE,
+                64 * DataManager.ITEM_ENTRY_SIZE, tm);
+
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            data.add(RandomUtil.randomBytes(200));
+            uids.add(dm.insert(xid, data.get(i)));
+        }
+        tm.commit(xid);
+
+        for (int round = 0; round < 2; ++round) {
+            for (int i = 0; i < uids.size(); ++i) {
+                assert dataEquals(dm, uids.get(i), data.get(i));
+            }
+        }
+        // 缓存中空闲的 DataItem 不引用页，只有 PageOne 一直被引用
+        assert dm.pc.stats().getPinnedPages() == 1;
+
+        // 正在使用的 DataItem 引用着它所在的页
+        DataItem di = dm.read(uids.get(0));
+        assert dm.pc.stats().getPinnedPages() == 2;
+        di.release();
+
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test(timeout = 30000)
+    public void testOptimisticReaders() throws Exception {
+        String path = "src/testFiles/dm_optimistic_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        Map<Long, byte[]> expected = new HashMap<>();
+        for (int i = 0; i < 500; ++i) {
+            byte[] data = RandomUtil.randomBytes(1 + random.nextInt(100));
+            expected.put(dm.insert(xid, data), data);
+        }
+
+        // 扫描与插入同一批页并发进行，已有数据一条不少，新数据不会读出越界的槽
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread inserter = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    dm.insert(xid, RandomUtil.randomBytes(1 + random.nextInt(100)));
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        inserter.start();
+        for (int round = 0; round < 5; ++round) {
+            Map<Long, byte[]> scanned = new HashMap<>();
+            dm.scan((uid, data, overflow) -> {
+                if (expected.containsKey(uid)) {
+                    scanned.put(uid, Arrays.copyOfRange(data.raw, data.start, data.end));
+                }
+                return true;
+            });
+            assert scanned.size() == expected.size();
+            for (Map.Entry<Long, byte[]> e : scanned.entrySet()) {
+                assert Arrays.equals(e.getValue(), expected.get(e.getKey()));
+            }
+        }
+        stop.set(true);
+        inserter.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // 有写者时 readStream 等它结束，读到的是完整的新内容
+        long uid = expected.keySet().iterator().next();
+        byte[] updated = RandomUtil.randomBytes(expected.get(uid).length);
+        DataItem di = dm.read(uid);
+        di.before();
+        CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return dm.readStream(uid).readAllBytes();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        Thread.sleep(50);
+        assert !read.isDone();
+        System.arraycopy(updated, 0, di.data().raw, di.data().start, updated.length);
+        di.after(xid);
+        di.release();
+        assert Arrays.equals(read.get(), updated);
+        assert Arrays.equals(dm.readStream(uid).readAllBytes(), updated);
+        tm.commit(xid);
+
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        String path = "src/testFiles/dm_scan_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        Map<Long, byte[]> expected = new HashMap<>();
+        for (int i = 0; i < 1000; ++i) {
+            byte[] data = RandomUtil.randomBytes(1 + random.nextInt(300));
+            long uid = dm.insert(xid, data);
+            // 每 10 条标记一条为无效
+            if (i % 10 == 0) {
+                DataItem di = dm.read(uid);
+                di.before();
+                SubArray raw = di.getRaw();
+                raw.raw[raw.start] = (byte) 1;
+                di.after(xid);
+                di.release();
+            } else {
+                expected.put(uid, data);
+            }
+        }
+        byte[] big = RandomUtil.randomBytes(3 * 8192);
+        long bigUid = dm.insert(xid, big);
+        tm.commit(xid);
+
+        Map<Long, byte[]> scanned = new HashMap<>();
+        dm.scan((uid, data, overflow) -> {
+            if (overflow) {
+                assert uid == bigUid;
+                assert Arrays.equals(dm.readStream(uid).readAllBytes(), big);
+            } else {
+                assert scanned.put(uid, Arrays.copyOfRange(data.raw, data.start, data.end)) == null;
+            }
+            return true;
+        });
+        assert scanned.size() == expected.size();
+        for (Map.Entry<Long, byte[]> e : expected.entrySet()) {
+            assert Arrays.equals(scanned.get(e.getKey()), e.getValue());
+        }
+        // 扫描结束后不再引用数据页
+        assert dm.pc.stats().getPinnedPages() == 1;
+
+        // consumer 返回 false 时停止扫描
+        int[] seen = {0};
+        dm.scan((uid, data, overflow) -> ++seen[0] < 10);
+        assert seen[0] == 10;
+
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        String path = "src/testFiles/dm_parallel_scan_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 21, tm);
+
+        long xid = tm.begin();
+        long count = 0, bytes = 0;
+        for (int i = 0; i < 5000; ++i) {
+            byte[] data = RandomUtil.randomBytes(100 + random.nextInt(400));
+            dm.insert(xid, data);
+            count++;
+            bytes += data.length;
+        }
+        tm.commit(xid);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        long[] total = dm.parallelScan(pool, () -> new ScanCollector<long[]>() {
+            long[] r = new long[2];
+
+            @Override
+            public boolean accept(long uid, SubArray data, boolean overflow) {
+                r[0]++;
+                r[1] += data.end - data.start;
+                return true;
+            }
+
+            @Override
+            public long[] result() {
+                return r;
+            }
+        }, (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]});
+        assert total[0] == count;
+        assert total[1] == bytes;
+
+        // collector 抛出的异常原样抛给调用者
+        try {
+            dm.parallelScan(pool, () -> new ScanCollector<Void>() {
+                @Override
+                public boolean accept(long uid, SubArray data, boolean overflow) {
+                    throw (RuntimeException) Error.DatabaseBusyException;
+                }
+
+                @Override
+                public Void result() {
+                    return null;
+                }
+            }, (a, b) -> null);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DatabaseBusyException;
+        }
+        pool.shutdown();
+
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        String path = "src/testFiles/dm_async_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        List<byte[]> data = new ArrayList<>();
+        List<CompletableFuture<Long>> inserts = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            data.add(RandomUtil.randomBytes(1 + random.nextInt(300)));
+            inserts.add(dm.insertAsync(xid, data.get(i)));
+        }
+        List<Long> uids = new ArrayList<>();
+        for (CompletableFuture<Long> f : inserts) {
+            uids.add(f.get());
+        }
+        tm.commit(xid);
+
+        for (int i = 0; i < uids.size(); ++i) {
+            DataItem di = dm.readAsync(uids.get(i)).get();
+            SubArray raw = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(raw.raw, raw.start, raw.end), data.get(i));
+            di.release();
+            // DataItem 和页都已在缓存中，不需要等待 I/O
+            CompletableFuture<DataItem> hit = dm.readAsync(uids.get(i));
+            assert hit.isDone();
+            hit.get().release();
+        }
+
+        dm.close();
+        // 关闭后提交的异步操作以异常结束
+        assert dm.insertAsync(xid, data.get(0)).isCompletedExceptionally();
+        tm.close();
+        deleteFiles(path);
+    }
+}
@@ -0,0 +1,58 @@
+package com.iamxgw.mydb.backend.dm;
+
+import com.iamxgw.mydb.backend.tm.TransactionManager;
+import com.iamxgw.mydb.backend.utils.RandomUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class OverflowTest {
+    private static byte[] readAll(DataManager dm, long uid) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[3000];
+        try (InputStream in = dm.readStream(uid)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testLargeValue() throws Exception {
+        String path = "src/testFiles/overflow_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        byte[] large = RandomUtil.randomBytes(3 << 20);
+        byte[] small = RandomUtil.randomBytes(100);
+        long largeUid = dm.insert(xid, large);
+        long smallUid = dm.insert(xid, small);
+        tm.commit(xid);
+
+        assert dm.read(largeUid).isOverflow();
+        assert Arrays.equals(readAll(dm, largeUid), large);
+        assert Arrays.equals(readAll(dm, smallUid), small);
+        dm.close();
+
+        // 重新打开后，新插入的数据不会写进溢出页
+        dm = DataManager.open(path, 1 << 20, tm);
+        xid = tm.begin();
+        for (int i = 0; i < 200; ++i) {
+            dm.insert(xid, RandomUtil.randomBytes(1000));
+        }
+        tm.commit(xid);
+        assert Arrays.equals(readAll(dm, largeUid), large);
+        dm.close();
+
+        tm.close();
+        for (String suffix : new String[]{".db", ".log", ".xid", ".fsm"}) {
+            assert new File(path + suffix).delete();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.iamxgw.mydb.backend.dm;
+
+import com.iamxgw.mydb.backend.dm.dataItem.DataItem;
+import com.iamxgw.mydb.backend.tm.TransactionManager;
+import com.iamxgw.mydb.common.SubArray;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class VacuumTest {
+    @Test
+    public void testReclaimInvalid() throws Exception {
+        String path = "src/testFiles/vacuum_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            uids.add(dm.insert(xid, new byte[1000]));
+        }
+        int pageNumber = dm.pc.getPageNumber();
+
+        // 将一半的数据标记为无效
+        for (int i = 0; i < uids.size(); i += 2) {
+            DataItem di = dm.read(uids.get(i));
+            di.before();
+            SubArray raw = di.getRaw();
+            raw.raw[raw.start] = (byte) 1;
+            di.after(xid);
+            di.release();
+        }
+        tm.commit(xid);
+
+        // 插入线程独占的页不会被清理，先放回 PageIndex
+        dm.returnInsertPages(0);
+        dm.vacuum.runPass();
+        VacuumStats st = dm.vacuumStats();
+        assert st.getBytesReclaimed() >= 100 * 1003;
+        assert st.getPagesVacuumed() > 0;
+
+        // 有效数据不受影响，无效数据读不到
+        for (int i = 0; i < uids.size(); ++i) {
+            DataItem di = dm.read(uids.get(i));
+            if (i % 2 == 0) {
+                assert di == null;
+            } else {
+                assert di.data().end - di.data().start == 1000;
+                di.release();
+            }
+        }
+
+        // 回收出的空间可以被新的插入使用
+        xid = tm.begin();
+        for (int i = 0; i < 100; ++i) {
+            dm.insert(xid, new byte[1000]);
+        }
+        tm.commit(xid);
+        assert dm.pc.getPageNumber() == pageNumber;
+
+        dm.close();
+        tm.close();
+        for (String suffix : new String[]{".db", ".log", ".xid", ".fsm"}) {
+            assert new File(path + suffix).delete();
+        }
+    }
+
+    @Test
+    public void testIndexStaysBounded() throws Exception {
+        String path = "src/testFiles/vacuum_bounded_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, 1 << 20, tm);
+
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 300; ++i) {
+            uids.add(dm.insert(xid, new byte[500]));
+        }
+        for (int i = 0; i < uids.size(); i += 3) {
+            DataItem di = dm.read(uids.get(i));
+            di.before();
+            SubArray raw = di.getRaw();
+            raw.raw[raw.start] = (byte) 1;
+            di.after(xid);
+            di.release();
+        }
+        tm.commit(xid);
+        dm.returnInsertPages(0);
+
+        // 多轮清理之后，队列中的 PageInfo 不会多于索引中的页
+        int indexed = dm.pIndex.snapshot().size();
+        for (int i = 0; i < 20; ++i) {
+            dm.vacuum.runPass();
+            assert dm.pIndex.snapshot().size() == indexed;
+            assert dm.pIndex.queuedSize() <= indexed;
+        }
+        assert dm.vacuumStats().getPagesVacuumed() > 0;
+
+        dm.close();
+        tm.close();
+        for (String suffix : new String[]{".db", ".log", ".xid", ".fsm"}) {
+            assert new File(path + suffix).delete();
+        }
+    }
+}
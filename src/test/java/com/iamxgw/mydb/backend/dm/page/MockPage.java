@@ -26,6 +26,26 @@ public class MockPage implements Page {
         lock.unlock();
     }
 
+    @Override
+    public void rLock() {
+        lock.lock();
+    }
+
+    @Override
+    public void rUnLock() {
+        lock.unlock();
+    }
+
+    @Override
+    public long optimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public void release() {
 
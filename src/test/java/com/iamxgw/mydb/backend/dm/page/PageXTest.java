@@ -0,0 +1,74 @@
+package com.iamxgw.mydb.backend.dm.page;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class PageXTest {
+    private static final int PAGE_SIZE = 4096;
+
+    private static byte[] item(int len, byte b) {
+        byte[] raw = new byte[len];
+        Arrays.fill(raw, b);
+        return raw;
+    }
+
+    private static byte[] read(Page pg, int slot) {
+        int offset = PageX.getItemOffset(pg, slot);
+        return Arrays.copyOfRange(pg.getData(), offset, offset + PageX.getItemLength(pg, slot));
+    }
+
+    @Test
+    public void testInsertFreeCompact() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw(PAGE_SIZE));
+        int free = PageX.getFreeSpace(pg);
+        for (int i = 0; i < 10; ++i) {
+            assert PageX.insert(pg, item(100 + i, (byte) i)) == i;
+        }
+        assert PageX.getSlotCount(pg) == 10;
+
+        for (int i = 0; i < 10; i += 2) {
+            PageX.free(pg, i);
+            assert PageX.getItemOffset(pg, i) == PageX.NO_ITEM;
+        }
+        assert PageX.compact(pg) == 100 + 102 + 104 + 106 + 108;
+
+        // 整理后槽号不变，内容不变
+        for (int i = 1; i < 10; i += 2) {
+            assert Arrays.equals(read(pg, i), item(100 + i, (byte) i));
+        }
+        // 新数据不会复用已回收的槽号
+        assert PageX.insert(pg, item(10, (byte) 10)) == 10;
+        assert PageX.getFreeSpace(pg) < free;
+
+        PageX.free(pg, 10);
+        for (int i = 1; i < 10; i += 2) {
+            PageX.free(pg, i);
+        }
+        PageX.compact(pg);
+        assert PageX.getFSO(pg) == 4;
+    }
+
+    @Test
+    public void testRecoverInsert() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw(PAGE_SIZE));
+        // 日志中的槽号超出当前槽数时，中间的槽作为已回收处理
+        assert PageX.recoverInsert(pg, item(50, (byte) 1), 2);
+        assert PageX.getSlotCount(pg) == 3;
+        assert PageX.getItemOffset(pg, 0) == PageX.NO_ITEM;
+        assert PageX.getItemOffset(pg, 1) == PageX.NO_ITEM;
+
+        // 重复恢复同一条日志是幂等的
+        int fso = PageX.getFSO(pg);
+        assert PageX.recoverInsert(pg, item(50, (byte) 2), 2);
+        assert PageX.getFSO(pg) == fso;
+        assert Arrays.equals(read(pg, 2), item(50, (byte) 2));
+
+        // 已回收的槽直接跳过
+        assert PageX.recoverInsert(pg, item(50, (byte) 3), 0);
+        assert PageX.getItemOffset(pg, 0) == PageX.NO_ITEM;
+
+        // 空间不足时返回 false
+        assert !PageX.recoverInsert(pg, item(PAGE_SIZE, (byte) 4), 3);
+    }
+}
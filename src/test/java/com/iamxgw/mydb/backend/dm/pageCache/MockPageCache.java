@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class MockPageCache implements PageCache {
 
@@ -28,6 +29,23 @@ public class MockPageCache implements PageCache {
         }
     }
 
+    @Override
+    public int allocPages(int count) {
+        return noPages.addAndGet(count) - count + 1;
+    }
+
+    @Override
+    public void writeNewPages(int pgno, byte[][] initData) {
+        lock.lock();
+        try {
+            for (int i = 0; i < initData.length; ++i) {
+                cache.put(pgno + i, MockPage.newMockPage(pgno + i, initData[i]));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public Page getPage(int pgno) throws Exception {
         lock.lock();
@@ -53,13 +71,64 @@ public class MockPageCache implements PageCache {
 
     }
 
+    @Override
+    public Page getPage(int pgno, boolean scan) throws Exception {
+        return getPage(pgno);
+    }
+
+    @Override
+    public Page getPageIfCached(int pgno) {
+        lock.lock();
+        try {
+            return cache.get(pgno);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public int getPageNumber() {
         return noPages.intValue();
     }
 
+    @Override
+    public int getWrittenPageNumber() {
+        return noPages.intValue();
+    }
+
     @Override
     public void flushPage(Page pg) {
 
     }
+
+    @Override
+    public void prefetch(int pgno, int count) {
+
+    }
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public PageCacheStats stats() {
+        return new PageCacheStats();
+    }
+
+    @Override
+    public boolean applyIfIdle(int pgno, Consumer<Page> action) {
+        Page pg;
+        lock.lock();
+        try {
+            pg = cache.get(pgno);
+        } finally {
+            lock.unlock();
+        }
+        if (pg == null) {
+            return false;
+        }
+        action.accept(pg);
+        return true;
+    }
 }
@@ -1,11 +1,18 @@
 package com.iamxgw.mydb.backend.dm.pageCache;
 
+import com.iamxgw.mydb.backend.common.ReplacementPolicy;
 import com.iamxgw.mydb.backend.dm.page.Page;
+import com.iamxgw.mydb.backend.dm.page.PageOne;
 import com.iamxgw.mydb.backend.utils.Panic;
 import com.iamxgw.mydb.backend.utils.RandomUtil;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
@@ -41,6 +48,302 @@ public class PageCacheTest {
         assert new File("src/testFiles/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testMappedPageCache() throws Exception {
+        PageCache pc = PageCache.create("src/testFiles/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, PageCache.Mode.MMAP);
+        for (int i = 0; i < 100; ++i) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[1] = (byte)i;
+            pg.release();
+        }
+        pc.truncateByBgno(80);
+        pc.close();
+        assert new File("src/testFiles/pcacher_mmap_test.db").length() == 80L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("src/testFiles/pcacher_mmap_test", PageCache.PAGE_SIZE * 50, PageCache.Mode.MMAP);
+        assert pc.getPageNumber() == 80;
+        for (int i = 1; i <= 80; ++i) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i - 1;
+            assert pg.getData()[1] == (byte)i - 1;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("src/testFiles/pcacher_mmap_test.db").delete();
+    }
+
+    @Test
+    public void testExtent() throws Exception {
+        String path = "src/testFiles/pcacher_extent_test";
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 50, PageCache.PAGE_SIZE,
+                ReplacementPolicy.twoQueue(), PageCache.Mode.FILE_CHANNEL, 16 * PageCache.PAGE_SIZE);
+        for (int i = 0; i < 20; ++i) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 文件按 16 页扩展
+        assert new File(path + ".db").length() == 32L * PageCache.PAGE_SIZE;
+        int first = pc.allocPages(20);
+        assert first == 21;
+        assert new File(path + ".db").length() == 48L * PageCache.PAGE_SIZE;
+        pc.close();
+        // 关闭时截断到真实的页数
+        assert new File(path + ".db").length() == 40L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open(path, PageCache.PAGE_SIZE * 50);
+        assert pc.getPageNumber() == 40;
+        for (int i = 1; i <= 20; ++i) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i - 1;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File(path + ".db").delete();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        PageCache pc = PageCache.create("src/testFiles/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        for (int i = 0; i < 60; ++i) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            tmp[PageCache.PAGE_SIZE - 1] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        pc = PageCache.open("src/testFiles/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        // 每段连续的页只发起一次读：[5, 20]、[21, 29]，之后是 [1, 4]
+        PageCacheStats before = pc.stats();
+        pc.prefetch(5, 30);
+        pc.prefetch(1, 100);
+        PageCacheStats after = pc.stats();
+        assert after.getPagesRead() - before.getPagesRead() == 29;
+        assert after.getReadIos() - before.getReadIos() == 3;
+        for (int i = 1; i <= 60; ++i) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i - 1;
+            assert pg.getData()[PageCache.PAGE_SIZE - 1] == (byte)i - 1;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("src/testFiles/pcacher_prefetch_test.db").delete();
+    }
+
+    @Test
+    public void testPrefetchSkipsUnwrittenPages() throws Exception {
+        String path = "src/testFiles/pcacher_unwritten_test";
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 50);
+        for (int i = 0; i < 4; ++i) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        assert pc.getWrittenPageNumber() == 4;
+
+        // 已分配还没写入的页不会被预读，之后新建的页也要等它写入后才算写入
+        int first = pc.allocPages(2);
+        int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        assert pc.getWrittenPageNumber() == 4;
+        pc.prefetch(first, 3);
+        assert pc.getPageIfCached(first) == null;
+
+        byte[][] images = new byte[2][];
+        for (int i = 0; i < images.length; ++i) {
+            images[i] = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+        }
+        pc.writeNewPages(first, images);
+        assert pc.getWrittenPageNumber() == pgno;
+        for (int i = 0; i < images.length; ++i) {
+            Page pg = pc.getPage(first + i);
+            assert Arrays.equals(pg.getData(), images[i]);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File(path + ".db").delete();
+    }
+
+    @Test(timeout = 10000)
+    public void testPageWriter() throws Exception {
+        String path = "src/testFiles/pcacher_writer_test";
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 20);
+        for (int i = 0; i < 30; ++i) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        // 不启动写页线程，由测试决定何时进行一轮写回
+        RandomAccessFile raf = new RandomAccessFile(path + ".db", "rw");
+        PageCacheImpl pci = new PageCacheImpl(raf, raf.getChannel(), 20, PageCache.PAGE_SIZE,
+                ReplacementPolicy.twoQueue(), 1);
+        for (int i = 0; i < 20; ++i) {
+            pci.getPage(i * 7 % 20 + 1).release();
+        }
+        for (int pgno = 1; pgno <= 10; ++pgno) {
+            Page pg = pci.getPage(pgno);
+            pg.getData()[0] = (byte) pgno;
+            pg.setDirty(true);
+            pg.release();
+        }
+
+        // 连续的脏页一次写回，一轮只 force 一次
+        PageCacheStats before = pci.stats();
+        pci.writeDirtyPages();
+        PageCacheStats after = pci.stats();
+        assert after.getPagesWritten() - before.getPagesWritten() == 10;
+        assert after.getWriteIos() - before.getWriteIos() == 1;
+        assert after.getForceLatency().getCount() - before.getForceLatency().getCount() == 1;
+        assert after.getDirtyPages() == 0;
+        for (int pgno = 1; pgno <= 10; ++pgno) {
+            Page pg = pci.getPageIfCached(pgno);
+            assert !pg.isDirty();
+            pg.release();
+        }
+
+        // 缓存满时先驱逐干净的页，还没写回的脏页留在缓存中
+        for (int pgno = 11; pgno <= 15; ++pgno) {
+            Page pg = pci.getPage(pgno);
+            pg.getData()[0] = (byte) pgno;
+            pg.setDirty(true);
+            pg.release();
+        }
+        before = pci.stats();
+        for (int pgno = 21; pgno <= 29; pgno += 2) {
+            pci.getPage(pgno).release();
+        }
+        after = pci.stats();
+        assert after.getEvictions() - before.getEvictions() == 5;
+        assert after.getPagesWritten() == before.getPagesWritten();
+        for (int pgno = 11; pgno <= 15; ++pgno) {
+            Page pg = pci.getPageIfCached(pgno);
+            assert pg != null && pg.isDirty();
+            pg.release();
+        }
+        pci.close();
+
+        // 写页线程会在下一轮把释放的脏页写回
+        pc = PageCache.open(path, PageCache.PAGE_SIZE * 20);
+        for (int pgno = 1; pgno <= 15; ++pgno) {
+            Page pg = pc.getPage(pgno);
+            assert pg.getData()[0] == (byte) pgno;
+            pg.release();
+        }
+        Page pg = pc.getPage(20);
+        pg.getData()[0] = (byte) 20;
+        pg.setDirty(true);
+        pg.release();
+        while (true) {
+            pg = pc.getPageIfCached(20);
+            boolean dirty = pg.isDirty();
+            pg.release();
+            if (!dirty) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        pc.close();
+
+        assert new File(path + ".db").delete();
+    }
+
+    @Test
+    public void testPageSize() throws Exception {
+        int pageSize = PageCache.MAX_PAGE_SIZE;
+        PageCache pc = PageCache.create("src/testFiles/pcacher_page_size_test", pageSize * 20L, pageSize);
+        pc.newPage(PageOne.InitRaw(pageSize));
+        for (int i = 0; i < 5; ++i) {
+            byte[] tmp = new byte[pageSize];
+            tmp[pageSize - 1] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+        assert new File("src/testFiles/pcacher_page_size_test.db").length() == 6L * pageSize;
+
+        pc = PageCache.open("src/testFiles/pcacher_page_size_test", pageSize * 20L);
+        assert pc.getPageSize() == pageSize;
+        assert pc.getPageNumber() == 6;
+        for (int i = 0; i < 5; ++i) {
+            Page pg = pc.getPage(i + 2);
+            assert pg.getData().length == pageSize;
+            assert pg.getData()[pageSize - 1] == (byte)i;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("src/testFiles/pcacher_page_size_test.db").delete();
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        PageCache pc = PageCache.create("src/testFiles/pcacher_stats_test", PageCache.PAGE_SIZE * 20);
+        for (int i = 0; i < 30; ++i) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 跳着访问，避免触发顺序预读
+        int last = 0;
+        for (int i = 0; i < 30; ++i) {
+            last = i * 7 % 30 + 1;
+            Page pg = pc.getPage(last);
+            pg.release();
+        }
+        Page pg = pc.getPage(last);
+        pc.flushPage(pg);
+
+        PageCacheStats st = pc.stats();
+        assert st.getMisses() == 30;
+        assert st.getHits() == 1;
+        assert st.getEvictions() == 10;
+        assert st.getPinnedPages() == 1;
+        assert st.getResidentPages() == 20;
+        assert st.getPagesWritten() == 31;
+        assert st.getGetPageLatency().getCount() == 31;
+        assert st.getMissLatency().getCount() == 30;
+        assert st.getFlushLatency().getCount() == 1;
+        assert st.getForceLatency().getCount() >= 1;
+        pg.release();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("com.iamxgw.mydb:type=PageCache,name="
+                + ObjectName.quote(new File("src/testFiles/pcacher_stats_test.db").getAbsolutePath()));
+        assert (Long) server.getAttribute(on, "Misses") == 30;
+        CompositeData latency = (CompositeData) server.getAttribute(on, "GetPageLatency");
+        assert (Long) latency.get("count") == 31;
+        pc.close();
+        assert !server.isRegistered(on);
+
+        assert new File("src/testFiles/pcacher_stats_test.db").delete();
+    }
+
+    @Test
+    public void testOptimisticRead() throws Exception {
+        PageCache pc = PageCache.create("src/testFiles/pcacher_latch_test", PageCache.PAGE_SIZE * 20);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        Page pg = pc.getPage(1);
+
+        long stamp = pg.optimisticRead();
+        pg.rLock();
+        pg.rUnLock();
+        assert pg.validate(stamp);
+
+        pg.lock();
+        assert pg.optimisticRead() == 0;
+        pg.getData()[0] = 1;
+        pg.unlock();
+        assert !pg.validate(stamp);
+        assert pg.validate(pg.optimisticRead());
+
+        pg.release();
+        pc.close();
+        assert new File("src/testFiles/pcacher_latch_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
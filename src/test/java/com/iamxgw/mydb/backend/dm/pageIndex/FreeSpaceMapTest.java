@@ -0,0 +1,45 @@
+package com.iamxgw.mydb.backend.dm.pageIndex;
+
+import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
+import com.iamxgw.mydb.backend.utils.RandomUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FreeSpaceMapTest {
+    @Test
+    public void testSaveLoad() {
+        String path = "src/testFiles/fsm_test";
+        FreeSpaceMap fsm = FreeSpaceMap.create(path);
+        PageIndex pIndex = new PageIndex(PageCache.PAGE_SIZE);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int pgno = 2; pgno <= 100; ++pgno) {
+            int freeSpace = pgno * 80;
+            pIndex.add(pgno, freeSpace);
+            expected.put(pgno, freeSpace);
+        }
+        byte[] vc = RandomUtil.randomBytes(8);
+        fsm.save(vc, 100, pIndex);
+        fsm.close();
+
+        fsm = FreeSpaceMap.open(path);
+        // ValidCheck 或页数对不上时不加载
+        PageIndex other = new PageIndex(PageCache.PAGE_SIZE);
+        assert !fsm.load(RandomUtil.randomBytes(8), 100, other);
+        assert !fsm.load(vc, 101, other);
+        assert other.snapshot().isEmpty();
+
+        PageIndex loaded = new PageIndex(PageCache.PAGE_SIZE);
+        assert fsm.load(vc, 100, loaded);
+        Map<Integer, Integer> got = new HashMap<>();
+        for (PageInfo pi : loaded.snapshot()) {
+            got.put(pi.pgno, pi.freeSpace);
+        }
+        assert got.equals(expected);
+        fsm.close();
+
+        assert new File(path + FreeSpaceMap.FSM_SUFFIX).delete();
+    }
+}
@@ -1,10 +1,103 @@
 package com.iamxgw.mydb.backend.dm.pageIndex;
 
+import com.iamxgw.mydb.backend.dm.page.PageX;
+import com.iamxgw.mydb.backend.dm.pageCache.PageCache;
 import org.junit.Test;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class PageIndexTest {
     @Test
     public void testPageIndex() {
+        int pageSize = PageCache.PAGE_SIZE;
+        PageIndex pIndex = new PageIndex(pageSize);
+        int threshold = pageSize / 40;
+        // 重复 add 同一页时以最后一次为准
+        for (int i = 0; i < 20; ++i) {
+            pIndex.add(i, 0);
+            pIndex.add(i, pageSize);
+            pIndex.add(i, i * threshold);
+        }
+
+        for (int i = 0; i < 19; ++i) {
+            PageInfo pi = pIndex.select(i * threshold);
+            assert pi != null;
+            assert pi.pgno == i + 1;
+        }
+        assert pIndex.select(0) == null;
+
+        // 被取走的页不会再被选中，直到重新 add
+        pIndex.add(5, pageSize);
+        assert pIndex.remove(5) != null;
+        assert pIndex.remove(5) == null;
+        assert pIndex.select(0) == null;
+        pIndex.add(5, pageSize);
+        assert pIndex.select(0).pgno == 5;
+
+        // 最后一个区块中的页空闲空间不够时不会被选中
+        int maxFreeSpace = PageX.maxFreeSpace(pageSize);
+        pIndex.add(30, maxFreeSpace - 15);
+        assert pIndex.select(maxFreeSpace) == null;
+        assert pIndex.select(maxFreeSpace - 15).pgno == 30;
+    }
+
+    @Test
+    public void testQueueStaysBounded() {
+        int pageSize = PageCache.PAGE_SIZE;
+        PageIndex pIndex = new PageIndex(pageSize);
+        for (int round = 0; round < 100; ++round) {
+            for (int i = 1; i <= 50; ++i) {
+                pIndex.add(i, (round * 7 + i) * 97 % pageSize);
+            }
+            for (int i = 1; i <= 50; i += 2) {
+                PageInfo pi = pIndex.remove(i);
+                pIndex.add(i, pi.freeSpace);
+            }
+            assert pIndex.queuedSize() <= 50;
+        }
+        // 没有空闲区块的页只记在索引中，不入队
+        pIndex.add(100, 0);
+        assert pIndex.contains(100);
+        assert pIndex.queuedSize() <= 50;
+    }
+
+    @Test
+    public void testConcurrentAddSelect() throws Exception {
+        PageIndex pIndex = new PageIndex(PageCache.PAGE_SIZE);
+        int noWorkers = 8;
+        int noPages = 200;
+        for (int i = 1; i <= noPages; ++i) {
+            pIndex.add(i, PageCache.PAGE_SIZE - 2);
+        }
+        // 每个页同一时刻最多被一个线程选中
+        ConcurrentHashMap<Integer, Boolean> inUse = new ConcurrentHashMap<>();
+        AtomicInteger errors = new AtomicInteger(0);
+        CountDownLatch cdl = new CountDownLatch(noWorkers);
+        for (int w = 0; w < noWorkers; ++w) {
+            new Thread(() -> {
+                for (int i = 0; i < 10000; ++i) {
+                    PageInfo pi = pIndex.select(100);
+                    if (pi == null) {
+                        continue;
+                    }
+                    if (inUse.putIfAbsent(pi.pgno, true) != null) {
+                        errors.incrementAndGet();
+                    }
+                    inUse.remove(pi.pgno);
+                    pIndex.add(pi.pgno, pi.freeSpace - 100 < 200 ? PageCache.PAGE_SIZE - 2 : pi.freeSpace - 100);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        assert errors.get() == 0;
 
+        int count = 0;
+        while (pIndex.select(0) != null) {
+            count++;
+        }
+        assert count == noPages;
     }
 }